@@ -12,8 +12,8 @@ import org.apache.commons.configuration.PropertiesConfiguration;
 import java.io.*;
 import java.awt.*;
 import java.awt.event.*;
-import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.swing.*;
@@ -43,7 +43,7 @@ public class App extends JPanel implements ActionListener
     // Properties
     //==================================================================================================================
 
-    private JButton importArtworkButton, setStashButton, sortButton;
+    private JButton importArtworkButton, setStashButton, sortButton, verifyButton;
     private JButton loginButton, logoutButton, dlArtworkButton;
     private JLabel statusLabel, stashLabel;
     private JTextArea log;
@@ -52,7 +52,12 @@ public class App extends JPanel implements ActionListener
     private File stashFolder;
     private File downloadFolder;
     private WebClient webClient;
-    private Set<String> artworkSet;
+    private StashRegistry artworkSet;
+    private StashWatcher stashWatcher;
+    private StashFilter stashFilter;
+    private volatile SubmissionIndex submissionIndex;
+    private volatile boolean submissionIndexStale; // Whether the stash changed since the submission index was built
+    private final AtomicLong stashChanges = new AtomicLong(); // Times the stash was changed, to spot changes during a build
     private static JFrame frame;
     private PropertiesConfiguration properties;
     private String username;
@@ -73,6 +78,9 @@ public class App extends JPanel implements ActionListener
         webClient.getOptions().setJavaScriptEnabled(false);
         webClient.getOptions().setTimeout(30000);
 
+        // Keep no old pages in the window's history, as listing pages are scanned one after another
+        webClient.getOptions().setHistoryPageCacheLimit(0);
+
         // Enable cookies
         CookieManager manager = webClient.getCookieManager();
         manager.setCookiesEnabled(true);
@@ -94,7 +102,7 @@ public class App extends JPanel implements ActionListener
         sorter = new ArtworkSorter(this);
 
         // Create the artwork set
-        artworkSet = new HashSet<String>();
+        artworkSet = new StashRegistry();
 
         // Set the image sorter so that it will only show directories
         fc.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
@@ -138,6 +146,11 @@ public class App extends JPanel implements ActionListener
         setStashButton.setPreferredSize(new Dimension(150, 25));
         setStashButton.addActionListener(this);
 
+        // Create the 'Verify stash' button
+        verifyButton = new JButton("Verify stash");
+        verifyButton.setPreferredSize(new Dimension(150, 25));
+        verifyButton.addActionListener(this);
+
         // Create a new panel to hold all the buttons
         JPanel topPanel = new JPanel(new GridBagLayout()); //use FlowLayout
         GridBagConstraints cs = new GridBagConstraints();
@@ -178,6 +191,11 @@ public class App extends JPanel implements ActionListener
         cs.gridwidth = 1;
         topPanel.add(sortButton, cs);
 
+        cs.gridx = 4;
+        cs.gridy = 0;
+        cs.gridwidth = 1;
+        topPanel.add(verifyButton, cs);
+
         // Add the button panel and log to the main panel
         add(topPanel, BorderLayout.PAGE_START);
         add(logScrollPane, BorderLayout.CENTER);
@@ -244,7 +262,23 @@ public class App extends JPanel implements ActionListener
         else {
             properties.addProperty("username", "");
             properties.addProperty("stash", "");
+            properties.addProperty("sortThreads", 1);
+            properties.addProperty("transferMode", "auto");
+            properties.addProperty("scanThreads", Runtime.getRuntime().availableProcessors());
+            properties.addProperty("stashFilter", false);
+            properties.addProperty("layout", "flat");
+            properties.addProperty("layoutRange", StashLayout.defaultRange);
+            properties.addProperty("verifyThreads", 4);
+            properties.addProperty("verifyHashes", false);
         }
+
+        // Set how many files the sorter may copy at once, and how
+        sorter.setIoThreads(properties.getInt("sortThreads", 1));
+        sorter.setTransferMode(FileTransfer.parseMode(properties.getString("transferMode")));
+
+        // Set which directory of the stash each submission goes in
+        sorter.setLayout(StashLayout.parse(properties.getString("layout"),
+                properties.getLong("layoutRange", StashLayout.defaultRange)));
     }
 
     //==================================================================================================================
@@ -299,6 +333,27 @@ public class App extends JPanel implements ActionListener
                 @Override
                 protected void done() {
                     log.setCaretPosition(log.getDocument().getLength());
+                    updateStashLabel();
+                }
+            };
+            worker.execute();
+        }
+        // Handles the 'Verify stash' button
+        else if (e.getSource() == verifyButton)
+        {
+            verifyButton.setEnabled(false);
+
+            SwingWorker<String, Object> worker = new SwingWorker<String, Object>() {
+                @Override
+                protected String doInBackground() {
+                    verifyStash();
+                    return null;
+                }
+
+                @Override
+                protected void done() {
+                    log.setCaretPosition(log.getDocument().getLength());
+                    verifyButton.setEnabled(true);
                 }
             };
             worker.execute();
@@ -342,6 +397,9 @@ public class App extends JPanel implements ActionListener
             // Create and show new dialog
             DownloadDialog dlDialog = new DownloadDialog(frame, this);
             dlDialog.setVisible(true);
+
+            // Show the totals including what was downloaded
+            updateStashLabel();
         }
     }
 
@@ -371,6 +429,17 @@ public class App extends JPanel implements ActionListener
             }
         }
 
+        // Write out the stash's content index
+        sorter.close();
+
+        // Stop watching the stash and write out its index
+        if (stashWatcher != null) {
+            stashWatcher.close();
+        }
+        if (stashFilter != null) {
+            stashFilter.close();
+        }
+
         // Close client and window
         webClient.close();
     }
@@ -477,7 +546,16 @@ public class App extends JPanel implements ActionListener
         stashFolder = file;
         properties.setProperty("stash", stashFolder.getAbsolutePath());
         stashLabel.setText("Stash location: " + stashFolder.getAbsolutePath());
-        findAllArtwork(stashFolder);
+        if (stashWatcher != null) {
+            stashWatcher.close();
+            stashWatcher = null;
+        }
+        if (stashFilter != null) {
+            artworkSet.setFilter(null);
+            stashFilter.close();
+            stashFilter = null;
+        }
+        StashIndex index = findAllArtwork(stashFolder);
         sorter.setOutputFolder(file);
         downloadFolder = new File(stashFolder.getAbsolutePath() + "/download");
         if (!downloadFolder.exists()) {
@@ -485,26 +563,279 @@ public class App extends JPanel implements ActionListener
                 appendToLog("Download folder created: " + downloadFolder.getAbsolutePath() + "\n");
             }
         }
+
+        // Open the submission index, bringing it up to date in the background
+        updateSubmissionIndex(stashFolder, index);
+
+        // Count what is in the stash if it has no inventory yet
+        seedInventory(stashFolder, index);
+
+        // Pick up files put in the stash from outside the application
+        try {
+            stashWatcher = new StashWatcher(stashFolder, downloadFolder, artworkSet, sorter, this);
+            stashWatcher.start(index.directoryPaths());
+        } catch (IOException e) {
+            appendToLog("Error watching stash:\n" + getStackTrace(e));
+        }
     }
 
     /**
-     * Recursive function that scans the stash and adds all pieces of artwork
-     * to the artwork stash set.
+     * Adds all pieces of artwork in the stash to the artwork stash set. The
+     * stash is read through its {@link StashIndex}, so only the directories
+     * that changed since the last time are listed again.
      *
      * @param src  stash folder to search from
+     * @return     up to date index of the stash
+     */
+    private StashIndex findAllArtwork(File src)
+    {
+        long start = System.currentTimeMillis();
+        StashIndex index = new StashIndex(src);
+
+        // Read the index left by the last run
+        try {
+            index.load();
+        } catch (IOException e) {
+            appendToLog("Error reading " + StashIndex.filename + ", rebuilding it:\n" + getStackTrace(e));
+            index = new StashIndex(src);
+        }
+
+        // List only what changed since then, several directories at once
+        int threads = Math.max(1, properties.getInt("scanThreads", Runtime.getRuntime().availableProcessors()));
+        long scan = System.currentTimeMillis();
+        index.refresh(threads);
+        long scanned = System.currentTimeMillis() - scan;
+
+        // Put a Bloom filter in front of the stash for very large stashes
+        if (properties.getBoolean("stashFilter", false))
+        {
+            try {
+                stashFilter = StashFilter.open(src, index.fileCount());
+                artworkSet.setFilter(stashFilter);
+            } catch (IOException e) {
+                appendToLog("Error opening " + StashFilter.filename + ":\n" + getStackTrace(e));
+            }
+        }
+
+        index.collectFiles(artworkSet);
+
+        // Save the index for the next run
+        try {
+            index.save();
+        } catch (IOException e) {
+            appendToLog("Error writing " + StashIndex.filename + ":\n" + getStackTrace(e));
+        }
+
+        long files = index.fileCount();
+        appendToLog("Stash scanned with " + threads + " thread(s): " + files + " files, " + index.listedCount()
+                + " of " + index.directoryCount() + " directories read in " + scanned + " ms ("
+                + (files * 1000 / Math.max(1, scanned)) + " files/s)\n");
+        appendToLog("Stash loaded: " + artworkSet.size() + " files in "
+                + (System.currentTimeMillis() - start) + " ms\n");
+
+        return index;
+    }
+
+    /**
+     * Checks the files of the stash for damage with a {@link StashVerifier},
+     * reading several files at once as set by 'verifyThreads'. Hashes are
+     * only compared if 'verifyHashes' is set.
+     */
+    private void verifyStash()
+    {
+        File stash = stashFolder;
+
+        if (stash == null) {
+            appendToLog("Stash not set\n");
+            return;
+        }
+
+        int threads = Math.max(1, properties.getInt("verifyThreads", 4));
+        boolean rehash = properties.getBoolean("verifyHashes", false);
+        appendToLog("Verifying stash" + (rehash ? " and comparing hashes" : "") + "...\n");
+
+        try {
+            // Pick up what changed since the stash was loaded
+            StashIndex index = new StashIndex(stash);
+            index.load();
+            index.refresh(threads);
+
+            new StashVerifier(stash, threads, rehash, this).verify(index, sorter.contentIndex().snapshot());
+        } catch (IOException e) {
+            appendToLog("Error verifying stash:\n" + getStackTrace(e));
+        }
+    }
+
+    /**
+     * Opens the submission index of the stash. If any artist directory
+     * changed since the index was built, it is built again on a background
+     * thread, and the old index is used until the new one is ready.
+     *
+     * @param stash  stash folder
+     * @param index  refreshed index of the stash's directories
+     */
+    private void updateSubmissionIndex(final File stash, final StashIndex index)
+    {
+        SubmissionIndex current = null;
+
+        try {
+            current = SubmissionIndex.open(stash);
+        } catch (IOException e) {
+            appendToLog("Error reading " + SubmissionIndex.filename + ", rebuilding it:\n" + getStackTrace(e));
+        }
+
+        submissionIndex = current;
+        submissionIndexStale = current == null || SubmissionIndex.isStale(stash, index);
+
+        // Index is up to date
+        if (!submissionIndexStale) {
+            return;
+        }
+
+        final SubmissionIndex previous = current;
+        final long changes = stashChanges.get();
+
+        Thread builder = new Thread(new Runnable() {
+            public void run() {
+                long start = System.currentTimeMillis();
+
+                try {
+                    SubmissionIndex.build(stash, index, previous);
+                    SubmissionIndex built = SubmissionIndex.open(stash);
+
+                    // Only use it if another stash was not picked in the meantime
+                    if (stash.equals(stashFolder))
+                    {
+                        submissionIndex = built;
+
+                        // Files added during the build are not in it, so it stays stale until the next one
+                        if (stashChanges.get() == changes) {
+                            submissionIndexStale = false;
+                            SubmissionIndex.markFresh(stash);
+                        }
+                    }
+
+                    appendToLog("Submission index built: " + (built == null ? 0 : built.size())
+                            + " submissions in " + (System.currentTimeMillis() - start) + " ms\n");
+                } catch (IOException e) {
+                    appendToLog("Error writing " + SubmissionIndex.filename + ":\n" + getStackTrace(e));
+                }
+            }
+        }, "Submission index builder");
+
+        builder.setDaemon(true);
+        builder.start();
+    }
+
+    /**
+     * Notes that files were added to or removed from the stash, leaving the
+     * submission index behind it. The index is marked stale on disk, so it
+     * is built again at the next startup.
+     */
+    void stashChanged()
+    {
+        stashChanges.incrementAndGet();
+        File stash = stashFolder;
+
+        if (submissionIndexStale || stash == null) {
+            return;
+        }
+
+        submissionIndexStale = true;
+
+        try {
+            SubmissionIndex.markStale(stash);
+        } catch (IOException e) {
+            appendToLog("Error writing " + SubmissionIndex.staleFilename + ":\n" + getStackTrace(e));
+        }
+    }
+
+    /**
+     * Counts the files of a stash that has no inventory yet, on a background
+     * thread. Otherwise counts the artists again whose directories changed
+     * since the inventory was saved. Sizes are taken from the submission
+     * index where it has them, so only files newer than the index are
+     * looked at on disk.
+     *
+     * @param stash  stash folder
+     * @param index  refreshed index of the stash's directories
      */
-    private void findAllArtwork(File src)
+    private void seedInventory(final File stash, final StashIndex index)
     {
-        if (src.isFile()) {
-            artworkSet.add(src.getName());
-        } else if (src.isDirectory()) {
-            File[] files = src.listFiles();
-            if (files != null && files.length > 0) {
-                for (File file : files) {
-                    findAllArtwork(file);
+        final StashInventory inventory = sorter.getInventory();
+        final SubmissionIndex sizes = submissionIndex;
+        updateStashLabel();
+
+        Thread seeder = new Thread(new Runnable() {
+            public void run() {
+                long start = System.currentTimeMillis();
+
+                // Bring a saved inventory up to date with the directories that changed
+                if (inventory.isSeeded())
+                {
+                    int recounted = inventory.reconcile(stash, index, sizes);
+
+                    if (recounted == 0) {
+                        return;
+                    }
+
+                    sorter.saveInventory();
+                    appendToLog("Stash inventory updated: " + recounted + " artists counted again in "
+                            + (System.currentTimeMillis() - start) + " ms\n");
                 }
+                // Otherwise count the whole stash
+                else
+                {
+                    inventory.seed(stash, index, sizes);
+                    sorter.saveInventory();
+
+                    appendToLog("Stash inventory counted: " + inventory.getFiles() + " files from "
+                            + inventory.getArtistCount() + " artists in " + (System.currentTimeMillis() - start)
+                            + " ms\n");
+                }
+
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        updateStashLabel();
+                    }
+                });
             }
+        }, "Inventory seeder");
+
+        seeder.setDaemon(true);
+        seeder.start();
+    }
+
+    /**
+     * Shows the stash location along with its totals.
+     */
+    void updateStashLabel()
+    {
+        StashInventory inventory = sorter.getInventory();
+
+        if (stashFolder == null || inventory == null) {
+            return;
+        }
+
+        String text = "Stash location: " + stashFolder.getAbsolutePath();
+
+        if (inventory.isSeeded()) {
+            text += " (" + inventory.getFiles() + " files from " + inventory.getArtistCount() + " artists, "
+                    + (inventory.getBytes() / (1024 * 1024)) + " MB)";
         }
+
+        stashLabel.setText(text);
+    }
+
+    /**
+     * Getter for the inventory of the stash, which keeps the number of
+     * files, bytes and submissions of each artist.
+     *
+     * @return  inventory of the stash, or null if no stash was set
+     */
+    StashInventory getInventory()
+    {
+        return sorter.getInventory();
     }
 
     /**
@@ -554,14 +885,54 @@ public class App extends JPanel implements ActionListener
     }
 
     /**
-     * Adds a file to the stash.
+     * Claims a file for download, so no other download fetches it at the
+     * same time. The claim ends when the file is added to the stash, or
+     * when it is given up with {@link #abortClaim(String)}.
+     *
+     * @param filename  file to claim
+     * @return          true if claimed, false if it is in the stash or already claimed
+     */
+    public boolean claimForStash(String filename)
+    {
+        return artworkSet.claim(filename);
+    }
+
+    /**
+     * Gives up a claim on a file that did not make it into the stash. Does
+     * nothing if the file was added.
+     *
+     * @param filename  file that was claimed
+     */
+    public void abortClaim(String filename)
+    {
+        artworkSet.abort(filename);
+    }
+
+    /**
+     * Adds a file to the stash, reading it once to compute its content hash.
      *
      * @param artwork  file to add
      */
     public void addToStash(File artwork)
     {
-        sorter.sortFile(artwork);
-        artworkSet.add(artwork.getName());
+        try {
+            addToStash(artwork, ContentHash.of(artwork.toPath()));
+        } catch (IOException e) {
+            appendToLog("Error reading file:\n" + getStackTrace(e));
+        }
+    }
+
+    /**
+     * Adds a file to the stash.
+     *
+     * @param artwork  file to add
+     * @param hash     content hash computed while the file was downloaded
+     */
+    public void addToStash(File artwork, long hash)
+    {
+        sorter.sortFile(artwork, hash);
+        artworkSet.commit(artwork.getName());
+        stashChanged();
     }
 
     /**
@@ -4,14 +4,11 @@ package seledrex.app;
 // Imports
 //======================================================================================================================
 
-import org.apache.commons.lang3.tuple.Pair;
+import org.apache.commons.io.FileExistsException;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.FilenameUtils;
 import java.io.File;
-import java.io.PrintWriter;
+import java.io.IOException;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import static org.apache.commons.lang.exception.ExceptionUtils.getStackTrace;
 
 //======================================================================================================================
@@ -20,18 +17,30 @@ import static org.apache.commons.lang.exception.ExceptionUtils.getStackTrace;
 
 /**
  * Implements the backend of the GUI, where all the image sorting
- * actually occurs. All the files inside the specified directories
- * are read into an array. Then the filenames and paths are read
- * into the program. Afterwards, a regular expression is used on
- * each of the filenames to check if it can be sorted. If a match is
- * found, then the artist name is extracted, and the artist is added
- * to a hash map that keeps track of all the artists found. Files
- * are the associated with each artist, where each artist has a list
- * of files. An output.txt file is created to show all the files
- * sorted, and then the images are copied to their respective
- * directories. If an artist does not have a directory made for him
- * or her, then a new one is created. If the copied file already exists,
- * then it will not be copied.
+ * actually occurs. The input folders are only remembered as paths
+ * until a sort runs, and each sort is carried out by a {@link SortRun}.
+ * The input folders' contents are streamed from disk a chunk of files
+ * at a time. Each filename is scanned with {@link SubmissionName} to
+ * check if it can be sorted. If a match is found, then the artist name
+ * is extracted, and the file is grouped with the other files of that
+ * artist in the chunk. Each chunk is copied to the artist directories
+ * before the next one is read, so memory use does not grow with the
+ * size of the input folders. Each file gets a line in the
+ * {@link SortManifest} as soon as it has been dealt with, showing all
+ * the files sorted. If an artist does not have a directory made for
+ * him or her, then a new one is created. If the copied file already
+ * exists, then it will not be copied. Which files exist is answered
+ * from a {@link StashDirectoryCache}, which lists each directory only
+ * once. Files whose contents are already in the stash under another
+ * name are found with the {@link ContentIndex} and not stored again.
+ *
+ * Every file that makes it into the stash is written to a
+ * {@link SortJournal}, so a sort that gets interrupted can pick up
+ * where it left off.
+ *
+ * When more than one I/O thread is configured, the files are grouped
+ * on a fork/join pool and then copied by a bounded pool of workers.
+ * The end result is the same as the sequential sort.
  *
  * @author Eric Auster
  */
@@ -41,10 +50,14 @@ class ArtworkSorter
     // Properties
     //==================================================================================================================
 
-    private List<Pair<String, String>> files; // Holds a list of all the files to sort
-    private Map<String, List<Pair<String, String>>> gallery; // Maps artists to their respective artwork
-    private List<File[]> inputFolders; // Stores the input folders supplied by user
+    private List<File> inputFolders; // Stores the input folders supplied by user
     private File outputFolder; // Stores the output folder supplied by user
+    private StashDirectoryCache directories; // Names inside the output folder's directories
+    private ContentIndex contents; // Sizes and hashes of the files in the output folder, loaded when first needed
+    private StashInventory inventory; // Totals of the files in the output folder
+    private int ioThreads; // Number of concurrent copies, 1 means sequential
+    private FileTransfer.Mode transferMode; // Transfer mode selected by the user, null for automatic
+    private StashLayout layout; // Directory each submission goes in
     private static String[] validFormats = {"jpg", "jpeg", "png", "gif", "swf", "mid", "wav", "mp3", "mpeg", "txt", "docx"};
     private final App app;
 
@@ -58,10 +71,10 @@ class ArtworkSorter
      */
     ArtworkSorter(App app)
     {
-        files = new ArrayList<Pair<String, String>>();
-        gallery = new HashMap<String, List<Pair<String, String>>>();
-        inputFolders = new ArrayList<File[]>();
+        inputFolders = new ArrayList<File>();
         outputFolder = null;
+        ioThreads = 1;
+        layout = new StashLayout(StashLayout.Kind.FLAT, StashLayout.defaultRange);
         this.app = app;
     }
 
@@ -70,228 +83,379 @@ class ArtworkSorter
     //==================================================================================================================
 
     /**
-     * Adds an input folder to the input folder list. An array of
-     * files is created immediately.
+     * Adds an input folder to the input folder list. The folder is
+     * not read until the sort runs.
      *
      * @param path  path to input folder
      */
-    void addInputFolder(String path) { inputFolders.add(new File(path).listFiles()); }
+    synchronized void addInputFolder(String path) { inputFolders.add(new File(path)); }
 
     /**
      * Sets the output folder that all files will be saved to.
      *
      * @param outputFolder  path to output folder
      */
-    void setOutputFolder(File outputFolder) { this.outputFolder = outputFolder; }
+    synchronized void setOutputFolder(File outputFolder)
+    {
+        close();
+        this.outputFolder = outputFolder;
+        this.directories = new StashDirectoryCache(outputFolder, app);
+        this.inventory = new StashInventory(outputFolder);
+
+        try {
+            inventory.load();
+        } catch (IOException e) {
+            app.appendToLog("Error reading " + StashInventory.filename + ", recounting the stash:\n" + getStackTrace(e));
+        }
+    }
+
+    /**
+     * Getter for the totals of the files in the output folder.
+     *
+     * @return  inventory of the output folder, or null if no output folder was set
+     */
+    synchronized StashInventory getInventory() { return inventory; }
+
+    /**
+     * Writes out the inventory, and writes out and closes the content index
+     * of the output folder.
+     */
+    synchronized void close()
+    {
+        saveInventory();
+
+        if (contents == null) {
+            return;
+        }
+
+        try {
+            contents.close();
+        } catch (IOException e) {
+            app.appendToLog("Error writing " + ContentIndex.filename + ":\n" + getStackTrace(e));
+        }
+
+        contents = null;
+    }
+
+    /**
+     * Passes on a directory of the output folder that was listed again
+     * after it changed, so names put there by other programs are not
+     * claimed, and counts the files that other programs put there. Files
+     * the sorter or a download put there were claimed first, so they are
+     * already known and left alone.
+     *
+     * @param directory  path of the directory relative to the output folder
+     * @param names      filenames inside the directory
+     * @param created    names created since the directory was last listed, or null if they are not known
+     */
+    void directoryChanged(String directory, String[] names, Set<String> created)
+    {
+        StashDirectoryCache cache;
+        StashInventory totals;
+        File folder;
+
+        synchronized (this)
+        {
+            cache = directories;
+            totals = inventory;
+            folder = outputFolder;
+        }
+
+        if (cache == null) {
+            return;
+        }
+
+        // Events were lost in a directory the sorter never listed, so the new files are unknown
+        boolean unknown = created == null && !cache.isListed(directory);
+        List<String> added = cache.added(directory, names, created == null ? Collections.<String>emptySet() : created);
+
+        if (totals == null || isSkipped(directory)) {
+            return;
+        }
+
+        String artist = StashLayout.artistOf(directory);
+
+        if (unknown) {
+            totals.recount(folder, artist);
+            return;
+        }
+
+        // Count only the files that are new, rather than the whole artist again
+        File dir = new File(folder, directory);
+
+        for (String name : added) {
+            totals.add(artist, name, new File(dir, name).length());
+        }
+    }
+
+    /**
+     * Passes on a file or directory that was deleted from the output
+     * folder, so its name can be claimed again. A file the sorter or a
+     * download deleted itself was released before, so it is left alone.
+     *
+     * @param directory  path of the parent directory relative to the output folder
+     * @param name       name of what was deleted
+     * @return           artist to count again with {@link #recount}, or null if the inventory is not affected
+     */
+    String fileDeleted(String directory, String name)
+    {
+        StashDirectoryCache cache;
+
+        synchronized (this) {
+            cache = directories;
+        }
+
+        if (cache != null && !cache.removed(directory, name)) {
+            return null;
+        }
+
+        // A deleted directory directly inside the output folder is a whole artist
+        if (directory.isEmpty()) {
+            return name.equals("download") ? null : name;
+        }
+
+        return isSkipped(directory) ? null : StashLayout.artistOf(directory);
+    }
+
+    /**
+     * Counts the files of an artist again, after some of them were deleted
+     * by another program.
+     *
+     * @param artist  artist directory
+     */
+    void recount(String artist)
+    {
+        StashInventory totals;
+        File folder;
+
+        synchronized (this)
+        {
+            totals = inventory;
+            folder = outputFolder;
+        }
+
+        if (totals != null) {
+            totals.recount(folder, artist);
+        }
+    }
+
+    /**
+     * Sets the number of files that may be copied at the same time
+     * when sorting the input folders. Anything below 2 keeps the
+     * original sequential sort.
+     *
+     * @param ioThreads  maximum number of concurrent copies
+     */
+    void setIoThreads(int ioThreads) { this.ioThreads = Math.max(1, ioThreads); }
+
+    /**
+     * Sets how files are put into the stash when sorting the input
+     * folders. See {@link FileTransfer} for the available modes.
+     *
+     * @param transferMode  mode to always use, or null to pick one per file store
+     */
+    void setTransferMode(FileTransfer.Mode transferMode) { this.transferMode = transferMode; }
+
+    /**
+     * Sets which directory of the stash each submission goes in, for
+     * downloads and sorts alike. Files already in the stash stay where
+     * they are.
+     *
+     * @param layout  layout of the artists' directories
+     */
+    void setLayout(StashLayout layout) { this.layout = layout; }
+
+    /**
+     * Getter for the layout of the artists' directories.
+     *
+     * @return  layout used for new files
+     */
+    StashLayout getLayout() { return layout; }
 
     //==================================================================================================================
     // Sorting
     //==================================================================================================================
 
     /**
-     * Where all the fun really happens! Each individual file is parsed
-     * using the regular expression, and then are properly sorted and
-     * copied to their proper locations.
+     * Where all the fun really happens! The input folders added so far
+     * are handed to a new {@link SortRun}, which streams each folder a
+     * chunk at a time, scans each individual filename, and then sorts
+     * and copies the files to their proper locations. The list of input
+     * folders is emptied, so the next sort starts from scratch.
      */
     void sortInputFolders()
     {
-        // Check if an input folder was given
-        if (inputFolders.isEmpty()) {
-            app.appendToLog("Input folder(s) not added\n");
-            return;
-        }
-
         // Check if an output folder was given
         if (outputFolder == null) {
             app.appendToLog("Output folder not set\n");
             return;
         }
 
-        // Loops through each of the input folders
-        for (File[] inputFolder : inputFolders)
-        {
-            if (inputFolder != null)
-            {
-                // Add each file inside of the input folder
-                for (File file : inputFolder) {
-                    // Check if file extension is valid. Add file if valid, log error if not.
-                    if (formatIsValid(FilenameUtils.getExtension(file.getName()))) {
-                        this.files.add(Pair.of(file.getName(), file.getAbsolutePath()));
-                    }
-                    else {
-                        app.appendToLog("Invalid file format for file '" + file.getAbsolutePath() + "'\n");
-                    }
-                }
-            }
+        List<File> folders = takeInputFolders();
 
-            // Create regular expression
-            Pattern pattern = Pattern.compile("(\\d+.)([^_]*)(_)(.*)");
-
-            // Loop through each of the files
-            for (Pair<String, String> file : this.files)
-            {
-                // Use regular expression
-                Matcher m = pattern.matcher(file.getKey());
-
-                // Pattern is found
-                if (m.find())
-                {
-                    // Extract artist
-                    String artist = m.group(2);
-
-                    // Check if the artist is in the gallery yet
-                    if (!gallery.containsKey(artist)) {
-                        gallery.put(artist, new ArrayList<Pair<String, String>>());
-                    }
-
-                    // Add the file to artist
-                    gallery.get(artist).add(file);
-                }
-                // Pattern not found
-                else
-                {
-                    // Check if unsorted has been created
-                    if (!gallery.containsKey("unsorted")) {
-                        gallery.put("unsorted", new ArrayList<Pair<String, String>>());
-                    }
-
-                    // Add the file to unsorted
-                    gallery.get("unsorted").add(file);
-                }
-            }
+        // Check if an input folder was given
+        if (folders.isEmpty()) {
+            app.appendToLog("Input folder(s) not added\n");
+            return;
         }
 
-        // Grab all the artists found
-        Set<String> artists = gallery.keySet();
-        PrintWriter writer = null;
+        new SortRun(this, outputFolder, directories, ioThreads, transferMode, app).run(folders);
+        app.stashChanged();
+    }
 
-        try {
-            // Create a print writer
-            writer = new PrintWriter(outputFolder.getAbsolutePath() + "/output.txt");
-
-            // Loop through each artist
-            for (String artist : artists)
-            {
-                // Get the artwork for the artist
-                List<Pair<String, String>> artwork = gallery.get(artist);
-
-                // Print the artist to file
-                writer.format(artist + ":\n");
-
-                int num = 1;
-
-                // Loop through all the files belonging to the artist
-                for (Pair<String, String> file : artwork)
-                {
-                    // Write the number and then filename to file
-                    writer.format("\t" + num + ". " + file.getKey() + "\n");
-                    num++;
-                }
-                writer.format("\n");
-            }
+    /**
+     * Hands over the input folders added so far and starts a new list.
+     *
+     * @return  folders to sort
+     */
+    private synchronized List<File> takeInputFolders()
+    {
+        List<File> folders = inputFolders;
+        inputFolders = new ArrayList<File>();
+        return folders;
+    }
 
-        // Catch exceptions
-        } catch (Exception e) {
-            app.appendToLog("Error writing output.txt:\n" + getStackTrace(e));
-        } finally {
-            if (writer != null) writer.close();
+    /**
+     * Returns the content index of the output folder, loading it the
+     * first time it is needed.
+     *
+     * @return  content index
+     * @throws IOException  if the index cannot be loaded
+     */
+    synchronized ContentIndex contentIndex() throws IOException
+    {
+        if (contents == null) {
+            contents = new ContentIndex(outputFolder);
         }
 
-        // Loop through all the artists
-        for (String artist : artists)
-        {
-            // Get the artwork for the artist
-            List<Pair<String, String>> artwork = gallery.get(artist);
-
-            // Open the directory for the artist
-            File artistDir = new File(outputFolder.getAbsolutePath() + "/" + artist);
-
-            // If the directory does not exist, create it
-            if (!artistDir.exists())
-            {
-                if (artistDir.mkdir()) {
-                    app.appendToLog("Made new directory: " + artistDir.getAbsolutePath() + "\n");
-                }
-            }
+        return contents;
+    }
 
-            // Loop through all the files belonging to the artist
-            for (Pair<String, String> filename : artwork)
-            {
-                // Open file inside artist directory
-                File check = new File(artistDir.getAbsolutePath() + "/" + filename.getKey());
-
-                // If the file does not exist, copy it
-                if (!check.exists())
-                {
-                    try {
-                        FileUtils.copyFile(new File(filename.getValue()),
-                                new File(artistDir.getAbsolutePath() + "/" + filename.getKey()));
-                        app.appendToLog("Copied: " + filename.getKey() + "\n");
-                    } catch (Exception e) {
-                        app.appendToLog("Error copying files:\n" + getStackTrace(e));
-                    }
-                }
-            }
+    /**
+     * Writes out the entries added to the content index by a sort.
+     */
+    synchronized void flushContentIndex()
+    {
+        if (contents == null) {
+            return;
+        }
+
+        try {
+            contents.flush();
+        } catch (IOException e) {
+            app.appendToLog("Error writing " + ContentIndex.filename + ":\n" + getStackTrace(e));
         }
     }
 
-    public void sortFile(File file)
+    /**
+     * Writes the inventory of the output folder to disk.
+     */
+    synchronized void saveInventory()
     {
-        // Create regular expression
-        Pattern pattern = Pattern.compile("(\\d{10}.)([^_]*)(_)(.*)");
-
-        // Use regular expression
-        Matcher m = pattern.matcher(file.getName());
+        if (inventory == null) {
+            return;
+        }
 
-        String artist;
+        try {
+            inventory.save();
+        } catch (IOException e) {
+            app.appendToLog("Error writing " + StashInventory.filename + ":\n" + getStackTrace(e));
+        }
+    }
 
-        // Pattern is found
-        if (m.find())
-        {
-            // Extract artist
-            artist = m.group(2);
+    /**
+     * Forgets a file that was added to the content index but could not
+     * be put in the stash after all.
+     *
+     * @param relative  path of the file, relative to the stash
+     * @param size      size of the file in bytes, or a negative number if it was never added
+     */
+    synchronized void forgetContent(String relative, long size)
+    {
+        if (contents != null && size >= 0) {
+            contents.remove(relative, size);
         }
-        // Pattern not found
-        else
-        {
+    }
+
+    /**
+     * Moves a single downloaded file into its artist's directory, or the
+     * bucket inside it picked by the layout. If the stash already holds
+     * the same contents under another name, or a file of the same name
+     * that was put there by another program, the file is deleted instead.
+     *
+     * @param file  file to sort
+     * @param hash  content hash computed while the file was downloaded
+     */
+    public void sortFile(File file, long hash)
+    {
+        SubmissionName parser = SubmissionName.forThread();
+
+        // Name must follow the naming convention
+        if (!parser.parse(file.getName())) {
             app.appendToLog("Incorrect format for file: " + file.getName() + "\n");
             return;
         }
 
-        // Open the directory for the artist
-        File artistDir = new File(outputFolder.getAbsolutePath() + "/" + artist);
+        // Extract artist, and the directory the layout puts the file in
+        String artist = parser.getArtist();
+        String directory = layout.directoryOf(parser);
+        String relative = directory + "/" + file.getName();
+        long size = file.length();
 
-        // If the directory does not exist, create it
-        if (!artistDir.exists())
-        {
-            if (artistDir.mkdir()) {
-                app.appendToLog("Made new directory: " + artistDir.getAbsolutePath() + "\n");
-            }
+        // Claim the name so nothing else puts the same file there
+        if (!directories.claim(directory, file.getName())) {
+            return;
         }
 
-        // Open file inside artist directory
-        File check = new File(artistDir.getAbsolutePath() + "/" + file.getName());
+        StashInventory totals = getInventory();
+        totals.expect(relative);
 
-        // If the file does not exist, copy it
-        if (!check.exists())
-        {
-            try {
-                FileUtils.moveFile(new File(file.getAbsolutePath()),
-                        new File(artistDir.getAbsolutePath() + "/" + file.getName()));
-                app.appendToLog("Copied: " + file.getName() + "\n");
-            } catch (Exception e) {
-                app.appendToLog("Error copying files:\n" + getStackTrace(e));
+        // Move the file into the artist directory
+        try {
+            String original = contentIndex().addUnlessDuplicate(relative, size, hash);
+
+            if (original != null) {
+                directories.release(directory, file.getName());
+                totals.abandon(relative);
+                FileUtils.forceDelete(file);
+                app.appendToLog("Duplicate of " + original + ": " + file.getName() + "\n");
+                return;
             }
+
+            FileUtils.moveFile(file, new File(directories.open(directory), file.getName()));
+            totals.settle(relative, artist, size);
+            app.appendToLog("Copied: " + file.getName() + "\n");
+        } catch (FileExistsException e) {
+            // Put there behind the cache's back, and the claim keeps the watcher from counting it
+            totals.settle(relative, artist, new File(directories.open(directory), file.getName()).length());
+            forgetContent(relative, size);
+            FileUtils.deleteQuietly(file);
+            app.appendToLog("Already in stash: " + file.getName() + "\n");
+        } catch (Exception e) {
+            directories.release(directory, file.getName());
+            totals.abandon(relative);
+            forgetContent(relative, size);
+
+            app.appendToLog("Error copying files:\n" + getStackTrace(e));
         }
     }
 
+    /**
+     * Files directly inside the output folder and downloads in progress are
+     * not artwork.
+     */
+    private static boolean isSkipped(String directory)
+    {
+        return directory.isEmpty() || directory.equals("download") || directory.startsWith("download/");
+    }
+
     /**
      * Helper function for sort. Returns true if given extension is valid.
      *
      * @param extension  extension to compare to valid extensions
      * @return           true if valid format, false otherwise
      */
-    private static boolean formatIsValid(String extension)
+    static boolean formatIsValid(String extension)
     {
         for (String format : validFormats) {
             if (extension.toLowerCase().equals(format)) {
@@ -0,0 +1,256 @@
+package seledrex.app;
+
+//======================================================================================================================
+// Imports
+//======================================================================================================================
+
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.util.Cookie;
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Date;
+
+//======================================================================================================================
+// Binary Fetcher
+//======================================================================================================================
+
+/**
+ * Downloads a submission's file without going through HtmlUnit, which
+ * would hold the whole body in memory before it could be copied out. The
+ * body is read into a large direct buffer and written to a file channel a
+ * buffer at a time, and hashed on the way. The request carries the
+ * cookies and user agent of a {@link WebClient}, so it belongs to the
+ * same session as the pages that led to it.
+ *
+ * @author Eric Auster
+ */
+class BinaryFetcher
+{
+    //==================================================================================================================
+    // Properties
+    //==================================================================================================================
+
+    private static final int bufferSize = 1024 * 1024;
+    private static final int maxRedirects = 5;
+
+    // One buffer per worker thread, kept for the thread's next download
+    private static final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+    };
+
+    private final WebClient client; // Session to download in
+
+    //==================================================================================================================
+    // Constructor
+    //==================================================================================================================
+
+    /**
+     * Creates a fetcher for the session of a web client.
+     *
+     * @param client  client whose cookies and user agent are sent
+     */
+    BinaryFetcher(WebClient client)
+    {
+        this.client = client;
+    }
+
+    //==================================================================================================================
+    // Methods
+    //==================================================================================================================
+
+    /**
+     * Downloads a file. Redirects are followed, including from http to
+     * https. The download fails if the body is shorter than the length
+     * the server announced.
+     *
+     * @param link    link to the file
+     * @param target  file to write, replaced if it exists
+     * @return        size and content hash of the file
+     * @throws IOException  if the file cannot be downloaded or written, a
+     *                      {@link StatusException} if the server did not answer with the file
+     */
+    Result fetch(String link, File target) throws IOException
+    {
+        URL url = new URL(link);
+        HttpURLConnection connection;
+
+        // Follow redirects by hand, as HttpURLConnection will not switch protocols
+        for (int redirects = 0; ; redirects++)
+        {
+            connection = open(url);
+            int status = connection.getResponseCode();
+            String location = connection.getHeaderField("Location");
+
+            if (status >= 300 && status < 400 && location != null)
+            {
+                if (redirects == maxRedirects) {
+                    throw new IOException("Too many redirects for " + link);
+                }
+
+                connection.disconnect();
+                url = new URL(url, location);
+                continue;
+            }
+
+            if (status != HttpURLConnection.HTTP_OK) {
+                connection.disconnect();
+                throw new StatusException(status, url);
+            }
+
+            break;
+        }
+
+        ByteBuffer buffer = buffers.get();
+        ContentHash hash = new ContentHash();
+        ReadableByteChannel in = null;
+        FileChannel out = null;
+        long written = 0;
+
+        try {
+            in = Channels.newChannel(connection.getInputStream());
+            out = new FileOutputStream(target).getChannel();
+            buffer.clear();
+
+            // Fill the buffer before writing it out, so each write is large
+            while (true)
+            {
+                int read = in.read(buffer);
+
+                if (read != -1 && buffer.hasRemaining()) {
+                    continue;
+                }
+
+                buffer.flip();
+                hash.update(buffer);
+
+                while (buffer.hasRemaining()) {
+                    written += out.write(buffer);
+                }
+
+                buffer.clear();
+
+                if (read == -1) {
+                    break;
+                }
+            }
+        } finally {
+            try {
+                if (in != null) in.close();
+            } finally {
+                if (out != null) out.close();
+            }
+        }
+
+        // Compare with the length the server announced
+        long announced = connection.getContentLengthLong();
+
+        if (announced >= 0 && announced != written) {
+            throw new IOException("Download cut short: " + written + " of " + announced + " bytes from " + url);
+        }
+
+        return new Result(written, hash.value());
+    }
+
+    //==================================================================================================================
+    // Helper Methods
+    //==================================================================================================================
+
+    /**
+     * Opens a connection carrying the session's cookies for the URL.
+     */
+    private HttpURLConnection open(URL url) throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        int timeout = client.getOptions().getTimeout();
+
+        connection.setInstanceFollowRedirects(false);
+        connection.setConnectTimeout(timeout);
+        connection.setReadTimeout(timeout);
+        connection.setRequestProperty("User-Agent", client.getBrowserVersion().getUserAgent());
+
+        String cookies = cookiesFor(url);
+
+        if (!cookies.isEmpty()) {
+            connection.setRequestProperty("Cookie", cookies);
+        }
+
+        return connection;
+    }
+
+    /**
+     * Builds the Cookie header of the session's cookies that apply to a URL.
+     */
+    private String cookiesFor(URL url)
+    {
+        String host = url.getHost().toLowerCase();
+        String path = url.getPath().isEmpty() ? "/" : url.getPath();
+        boolean secure = url.getProtocol().equals("https");
+        Date now = new Date();
+        StringBuilder header = new StringBuilder();
+
+        for (Cookie cookie : client.getCookieManager().getCookies())
+        {
+            String domain = cookie.getDomain() == null ? host : cookie.getDomain().toLowerCase();
+
+            if (domain.startsWith(".")) {
+                domain = domain.substring(1);
+            }
+
+            // Skip cookies of other sites, other paths, expired ones, and secure ones over http
+            if (!host.equals(domain) && !host.endsWith("." + domain)) continue;
+            if (cookie.getPath() != null && !path.startsWith(cookie.getPath())) continue;
+            if (cookie.getExpires() != null && cookie.getExpires().before(now)) continue;
+            if (cookie.isSecure() && !secure) continue;
+
+            if (header.length() > 0) header.append("; ");
+            header.append(cookie.getName()).append('=').append(cookie.getValue());
+        }
+
+        return header.toString();
+    }
+
+    //==================================================================================================================
+    // Result
+    //==================================================================================================================
+
+    /**
+     * A downloaded file.
+     */
+    static class Result
+    {
+        final long size; // Bytes written
+        final long hash; // Content hash of the bytes written
+
+        Result(long size, long hash)
+        {
+            this.size = size;
+            this.hash = hash;
+        }
+    }
+
+    //==================================================================================================================
+    // StatusException
+    //==================================================================================================================
+
+    /**
+     * The server answered with something other than the file.
+     */
+    static class StatusException extends IOException
+    {
+        final int status; // HTTP status code
+
+        StatusException(int status, URL url)
+        {
+            super("Server returned " + status + " for " + url);
+            this.status = status;
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package seledrex.app;
+
+//======================================================================================================================
+// Imports
+//======================================================================================================================
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+
+//======================================================================================================================
+// Content Hash
+//======================================================================================================================
+
+/**
+ * Streaming implementation of the 64 bit xxHash, a fast non-cryptographic
+ * hash used to tell whether two files hold the same bytes. Bytes can be
+ * fed in as they are written to disk, so a download is hashed without
+ * reading it back.
+ *
+ * @author Eric Auster
+ */
+final class ContentHash
+{
+    //==================================================================================================================
+    // Properties
+    //==================================================================================================================
+
+    private static final long prime1 = 0x9E3779B185EBCA87L;
+    private static final long prime2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long prime3 = 0x165667B19E3779F9L;
+    private static final long prime4 = 0x85EBCA77C2B2AE63L;
+    private static final long prime5 = 0x27D4EB2F165667C5L;
+    private static final int bufferSize = 64 * 1024;
+
+    private long v1, v2, v3, v4; // Accumulators for each lane of a stripe
+    private final byte[] stripe; // Bytes left over that do not fill a stripe yet
+    private int buffered; // Number of bytes in the stripe
+    private long total; // Number of bytes hashed
+
+    //==================================================================================================================
+    // Constructor
+    //==================================================================================================================
+
+    /**
+     * Creates a hash with no bytes fed in.
+     */
+    ContentHash()
+    {
+        v1 = prime1 + prime2;
+        v2 = prime2;
+        v3 = 0;
+        v4 = -prime1;
+        stripe = new byte[32];
+    }
+
+    //==================================================================================================================
+    // Methods
+    //==================================================================================================================
+
+    /**
+     * Hashes the whole contents of a file.
+     *
+     * @param file  file to read
+     * @return      hash of the file
+     * @throws IOException  if the file cannot be read
+     */
+    static long of(Path file) throws IOException
+    {
+        ContentHash hash = new ContentHash();
+        InputStream in = null;
+
+        try {
+            in = new FileInputStream(file.toFile());
+            byte[] bytes = new byte[bufferSize];
+            int read;
+
+            while ((read = in.read(bytes)) != -1) {
+                hash.update(bytes, 0, read);
+            }
+        } finally {
+            if (in != null) in.close();
+        }
+
+        return hash.value();
+    }
+
+    /**
+     * Feeds bytes into the hash.
+     *
+     * @param bytes   array holding the bytes
+     * @param offset  first byte to hash
+     * @param length  number of bytes to hash
+     */
+    void update(byte[] bytes, int offset, int length)
+    {
+        int end = offset + length;
+        total += length;
+
+        // Top up a partially filled stripe first
+        if (buffered > 0)
+        {
+            int needed = Math.min(32 - buffered, length);
+            System.arraycopy(bytes, offset, stripe, buffered, needed);
+            buffered += needed;
+            offset += needed;
+
+            if (buffered < 32) {
+                return;
+            }
+
+            consume(stripe, 0);
+            buffered = 0;
+        }
+
+        // Hash whole stripes straight from the caller's array
+        while (end - offset >= 32) {
+            consume(bytes, offset);
+            offset += 32;
+        }
+
+        // Keep whatever is left for the next call
+        System.arraycopy(bytes, offset, stripe, 0, end - offset);
+        buffered = end - offset;
+    }
+
+    /**
+     * Feeds the remaining bytes of a buffer into the hash. The buffer's
+     * position is left where it was, so the same bytes can then be written
+     * out. Whole stripes are read from the buffer in place, which suits
+     * direct buffers that have no array behind them.
+     *
+     * @param bytes  buffer holding the bytes, from its position to its limit
+     */
+    void update(ByteBuffer bytes)
+    {
+        int offset = bytes.position();
+        int end = bytes.limit();
+        total += end - offset;
+
+        // Top up a partially filled stripe first
+        if (buffered > 0)
+        {
+            int needed = Math.min(32 - buffered, end - offset);
+
+            for (int i = 0; i < needed; i++) {
+                stripe[buffered++] = bytes.get(offset++);
+            }
+
+            if (buffered < 32) {
+                return;
+            }
+
+            consume(stripe, 0);
+            buffered = 0;
+        }
+
+        // Hash whole stripes straight from the buffer
+        ByteOrder order = bytes.order();
+        bytes.order(ByteOrder.LITTLE_ENDIAN);
+
+        while (end - offset >= 32) {
+            v1 = round(v1, bytes.getLong(offset));
+            v2 = round(v2, bytes.getLong(offset + 8));
+            v3 = round(v3, bytes.getLong(offset + 16));
+            v4 = round(v4, bytes.getLong(offset + 24));
+            offset += 32;
+        }
+
+        bytes.order(order);
+
+        // Keep whatever is left for the next call
+        while (offset < end) {
+            stripe[buffered++] = bytes.get(offset++);
+        }
+    }
+
+    /**
+     * Finishes the hash of the bytes fed in so far. More bytes may be fed
+     * in afterwards.
+     *
+     * @return  64 bit hash
+     */
+    long value()
+    {
+        long h;
+
+        if (total >= 32) {
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = merge(h, v1);
+            h = merge(h, v2);
+            h = merge(h, v3);
+            h = merge(h, v4);
+        } else {
+            h = prime5;
+        }
+
+        h += total;
+        int i = 0;
+
+        // Remaining 8 byte words
+        for (; i + 8 <= buffered; i += 8) {
+            h ^= round(0, readLong(stripe, i));
+            h = Long.rotateLeft(h, 27) * prime1 + prime4;
+        }
+
+        // Remaining 4 byte word
+        if (i + 4 <= buffered) {
+            h ^= (readInt(stripe, i) & 0xFFFFFFFFL) * prime1;
+            h = Long.rotateLeft(h, 23) * prime2 + prime3;
+            i += 4;
+        }
+
+        // Remaining single bytes
+        for (; i < buffered; i++) {
+            h ^= (stripe[i] & 0xFF) * prime5;
+            h = Long.rotateLeft(h, 11) * prime1;
+        }
+
+        // Final mix
+        h ^= h >>> 33;
+        h *= prime2;
+        h ^= h >>> 29;
+        h *= prime3;
+        h ^= h >>> 32;
+
+        return h;
+    }
+
+    /**
+     * Mixes a 32 byte stripe into the four accumulators.
+     */
+    private void consume(byte[] bytes, int offset)
+    {
+        v1 = round(v1, readLong(bytes, offset));
+        v2 = round(v2, readLong(bytes, offset + 8));
+        v3 = round(v3, readLong(bytes, offset + 16));
+        v4 = round(v4, readLong(bytes, offset + 24));
+    }
+
+    private static long round(long acc, long input)
+    {
+        acc += input * prime2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * prime1;
+    }
+
+    private static long merge(long h, long acc)
+    {
+        h ^= round(0, acc);
+        return h * prime1 + prime4;
+    }
+
+    private static long readLong(byte[] b, int i)
+    {
+        return (b[i] & 0xFFL) | (b[i + 1] & 0xFFL) << 8 | (b[i + 2] & 0xFFL) << 16 | (b[i + 3] & 0xFFL) << 24
+                | (b[i + 4] & 0xFFL) << 32 | (b[i + 5] & 0xFFL) << 40 | (b[i + 6] & 0xFFL) << 48
+                | (b[i + 7] & 0xFFL) << 56;
+    }
+
+    private static int readInt(byte[] b, int i)
+    {
+        return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24;
+    }
+}
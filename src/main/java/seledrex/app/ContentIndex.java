@@ -0,0 +1,465 @@
+package seledrex.app;
+
+//======================================================================================================================
+// Imports
+//======================================================================================================================
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+//======================================================================================================================
+// Content Index
+//======================================================================================================================
+
+/**
+ * Keeps track of the size and content hash of every file in the stash, so
+ * the same artwork is not stored twice under different names. Files are
+ * first compared by size, and only hashed when another file of the same
+ * size is already known. Files that have never been compared keep no
+ * hash until they need one.
+ *
+ * The index is persisted in the stash as content.index, one line per
+ * file: size, hash (or '-') and path relative to the stash. New entries
+ * are appended, and the file is rewritten without stale lines when it is
+ * loaded. The first time a stash is used, the index is seeded from the
+ * sizes of the files already in it. The bulk sort and several downloads
+ * use the index at once, so everything it holds is guarded by its lock,
+ * but no file is hashed while the lock is held.
+ *
+ * @author Eric Auster
+ */
+class ContentIndex
+{
+    //==================================================================================================================
+    // Properties
+    //==================================================================================================================
+
+    static final String filename = "content.index";
+
+    private final File stash; // Stash folder
+    private final File file; // Index inside the stash
+    private final Map<Long, List<Entry>> bySize; // Known files grouped by size
+    private Writer writer; // Appends new entries to the index
+
+    //==================================================================================================================
+    // Constructor
+    //==================================================================================================================
+
+    /**
+     * Loads the index of a stash, seeding it from the stash's files if
+     * there is none yet.
+     *
+     * @param stash  stash folder
+     * @throws IOException  if the index cannot be read or written
+     */
+    ContentIndex(File stash) throws IOException
+    {
+        this.stash = stash;
+        this.file = new File(stash, filename);
+        this.bySize = new HashMap<Long, List<Entry>>();
+
+        if (file.exists()) {
+            load();
+        } else {
+            seed();
+        }
+
+        rewrite();
+        writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+    }
+
+    //==================================================================================================================
+    // Methods
+    //==================================================================================================================
+
+    /**
+     * Adds a file that is about to be put in the stash, unless a file with
+     * the same contents is already there. The candidate is only read when
+     * a file of the same size is known, and is read without holding the
+     * lock.
+     *
+     * @param path       path the file will have, relative to the stash
+     * @param candidate  file to read if it has to be hashed
+     * @param size       size of the file in bytes
+     * @return           relative path of the identical file, or null if the file was added
+     * @throws IOException  if a file cannot be hashed or the index cannot be written
+     */
+    String addUnlessDuplicate(String path, Path candidate, long size) throws IOException
+    {
+        synchronized (this)
+        {
+            List<Entry> entries = bySize.get(size);
+
+            // No other file of this size, so no need to hash
+            if (entries == null || entries.isEmpty()) {
+                add(new Entry(path, size, false, 0));
+                return null;
+            }
+        }
+
+        return addUnlessDuplicate(path, size, ContentHash.of(candidate));
+    }
+
+    /**
+     * Adds a file whose hash was computed while it was written, unless a
+     * file with the same contents is already in the stash. Files of the
+     * same size that have never been compared are hashed first, without
+     * holding the lock, so other sorts and downloads are not held up
+     * while they are read. The comparison and the insert then happen under
+     * the lock together, so of two identical files added at once, only
+     * the first is kept.
+     *
+     * @param path  path the file will have, relative to the stash
+     * @param size  size of the file in bytes
+     * @param hash  content hash of the file
+     * @return      relative path of the identical file, or null if the file was added
+     * @throws IOException  if a file cannot be hashed or the index cannot be written
+     */
+    String addUnlessDuplicate(String path, long size, long hash) throws IOException
+    {
+        while (true)
+        {
+            List<Entry> unhashed = new ArrayList<Entry>();
+
+            synchronized (this)
+            {
+                List<Entry> entries = bySize.get(size);
+
+                if (entries != null) {
+                    for (Entry entry : entries) {
+                        if (!entry.hashed) {
+                            unhashed.add(entry);
+                        }
+                    }
+                }
+
+                // Every file of this size has a hash, so compare and add in one go
+                if (unhashed.isEmpty()) {
+                    return compareAndAdd(path, size, hash);
+                }
+            }
+
+            // Files added meanwhile may need hashing as well, so check again afterwards
+            hashAll(unhashed);
+        }
+    }
+    /**
+     * Forgets a file, for when it could not be put in the stash after all.
+     *
+     * @param path  path of the file, relative to the stash
+     * @param size  size of the file in bytes
+     */
+    synchronized void remove(String path, long size)
+    {
+        List<Entry> entries = bySize.get(size);
+
+        if (entries != null)
+        {
+            Iterator<Entry> it = entries.iterator();
+
+            while (it.hasNext()) {
+                if (it.next().path.equals(path)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies what is known about every file, for checking the files
+     * against it.
+     *
+     * @return  entry of each file, by path relative to the stash
+     */
+    synchronized Map<String, Entry> snapshot()
+    {
+        Map<String, Entry> copy = new HashMap<String, Entry>();
+
+        for (List<Entry> entries : bySize.values()) {
+            for (Entry entry : entries) {
+                copy.put(entry.path, new Entry(entry.path, entry.size, entry.hashed, entry.hash));
+            }
+        }
+
+        return copy;
+    }
+
+    /**
+     * Writes out any buffered entries.
+     *
+     * @throws IOException  if the index cannot be written
+     */
+    synchronized void flush() throws IOException
+    {
+        writer.flush();
+    }
+
+    /**
+     * Flushes and closes the index.
+     *
+     * @throws IOException  if the index cannot be written
+     */
+    synchronized void close() throws IOException
+    {
+        writer.close();
+    }
+
+    //==================================================================================================================
+    // Helper Methods
+    //==================================================================================================================
+
+    /**
+     * Compares a file with the files of the same size, all of which have a
+     * hash, and adds it if none matches. Must hold the lock.
+     *
+     * @return  relative path of the identical file, or null if the file was added
+     */
+    private String compareAndAdd(String path, long size, long hash) throws IOException
+    {
+        List<Entry> entries = bySize.get(size);
+
+        if (entries != null)
+        {
+            Iterator<Entry> it = entries.iterator();
+
+            while (it.hasNext())
+            {
+                Entry entry = it.next();
+
+                if (entry.hash == hash && !entry.path.equals(path))
+                {
+                    // Only trust the match if the file is still there
+                    if (new File(stash, entry.path).exists()) {
+                        return entry.path;
+                    }
+
+                    it.remove();
+                }
+            }
+        }
+
+        add(new Entry(path, size, true, hash));
+        return null;
+    }
+
+    /**
+     * Hashes files that have never been compared. The files are read
+     * without holding the lock, and each hash is stored under it. Files
+     * that are gone are forgotten. If two threads hash the same file, the
+     * first hash stored is kept.
+     */
+    private void hashAll(List<Entry> entries) throws IOException
+    {
+        for (Entry entry : entries)
+        {
+            long hash;
+
+            try {
+                hash = ContentHash.of(new File(stash, entry.path).toPath());
+            } catch (NoSuchFileException e) {
+                synchronized (this) {
+                    removeEntry(entry);
+                }
+                continue;
+            }
+
+            synchronized (this)
+            {
+                if (!entry.hashed) {
+                    entry.hash = hash;
+                    entry.hashed = true;
+                    append(entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes a single entry out of memory. Must hold the lock.
+     */
+    private void removeEntry(Entry entry)
+    {
+        List<Entry> entries = bySize.get(entry.size);
+
+        if (entries == null) {
+            return;
+        }
+
+        Iterator<Entry> it = entries.iterator();
+
+        while (it.hasNext()) {
+            if (it.next() == entry) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Adds an entry in memory and appends it to the index.
+     */
+    private void add(Entry entry) throws IOException
+    {
+        List<Entry> entries = bySize.get(entry.size);
+
+        if (entries == null) {
+            entries = new ArrayList<Entry>(1);
+            bySize.put(entry.size, entries);
+        }
+
+        entries.add(entry);
+        append(entry);
+    }
+
+    /**
+     * Appends a line for an entry. A later line for the same path replaces
+     * an earlier one when the index is loaded.
+     */
+    private void append(Entry entry) throws IOException
+    {
+        writer.write(entry.toLine());
+    }
+
+    /**
+     * Reads the index, keeping the last line written for each path.
+     */
+    private void load() throws IOException
+    {
+        Map<String, Entry> byPath = new HashMap<String, Entry>();
+        BufferedReader reader = null;
+
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+            String line;
+
+            while ((line = reader.readLine()) != null)
+            {
+                String[] parts = line.split("\t", 3);
+
+                // Skip lines cut short by a crash
+                if (parts.length < 3) {
+                    continue;
+                }
+
+                try {
+                    boolean hashed = !parts[1].equals("-");
+                    Entry entry = new Entry(parts[2], Long.parseLong(parts[0]), hashed,
+                            hashed ? Long.parseUnsignedLong(parts[1], 16) : 0);
+                    byPath.put(entry.path, entry);
+                } catch (NumberFormatException e) {
+                    // Also cut short by a crash
+                }
+            }
+        } finally {
+            if (reader != null) reader.close();
+        }
+
+        for (Entry entry : byPath.values()) {
+            List<Entry> entries = bySize.get(entry.size);
+
+            if (entries == null) {
+                entries = new ArrayList<Entry>(1);
+                bySize.put(entry.size, entries);
+            }
+
+            entries.add(entry);
+        }
+    }
+
+    /**
+     * Fills a new index with the sizes of the files already in the stash.
+     * Files directly inside the stash folder and the download folder are
+     * not artwork and are left out.
+     */
+    private void seed() throws IOException
+    {
+        final Path root = stash.toPath();
+
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                return dir.equals(root.resolve("download")) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && !path.getParent().equals(root))
+                {
+                    Entry entry = new Entry(root.relativize(path).toString().replace('\\', '/'),
+                            attrs.size(), false, 0);
+                    List<Entry> entries = bySize.get(entry.size);
+
+                    if (entries == null) {
+                        entries = new ArrayList<Entry>(1);
+                        bySize.put(entry.size, entries);
+                    }
+
+                    entries.add(entry);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path path, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Writes the index from scratch with one line per entry.
+     */
+    private void rewrite() throws IOException
+    {
+        File compacted = new File(stash, filename + ".tmp");
+        Writer out = null;
+
+        try {
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(compacted), StandardCharsets.UTF_8));
+
+            for (List<Entry> entries : bySize.values()) {
+                for (Entry entry : entries) {
+                    out.write(entry.toLine());
+                }
+            }
+        } finally {
+            if (out != null) out.close();
+        }
+
+        Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    //==================================================================================================================
+    // Entry
+    //==================================================================================================================
+
+    /**
+     * A single file of the stash.
+     */
+    static class Entry
+    {
+        final String path;
+        final long size;
+        boolean hashed;
+        long hash;
+
+        Entry(String path, long size, boolean hashed, long hash)
+        {
+            this.path = path;
+            this.size = size;
+            this.hashed = hashed;
+            this.hash = hash;
+        }
+
+        String toLine()
+        {
+            return size + "\t" + (hashed ? Long.toHexString(hash) : "-") + "\t" + path + "\n";
+        }
+    }
+}
@@ -4,13 +4,11 @@ package seledrex.app;
 // Imports
 //======================================================================================================================
 
-import com.gargoylesoftware.htmlunit.TextPage;
-import com.gargoylesoftware.htmlunit.UnexpectedPage;
 import com.gargoylesoftware.htmlunit.WebClient;
 import com.gargoylesoftware.htmlunit.html.DomElement;
 import com.gargoylesoftware.htmlunit.html.HtmlAnchor;
 import com.gargoylesoftware.htmlunit.html.HtmlPage;
-import com.gargoylesoftware.htmlunit.util.Cookie;
+import org.apache.commons.io.FileUtils;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
@@ -20,9 +18,12 @@ import java.beans.PropertyChangeListener;
 import java.io.*;
 import java.util.*;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import static java.util.concurrent.Executors.newFixedThreadPool;
@@ -46,12 +47,15 @@ public class DownloadDialog extends JDialog implements ActionListener, PropertyC
     //==================================================================================================================
 
     private final int maxTries = 3;
+    private static final int pageQueueSize = 2; // Listing pages scanned ahead of the downloads
+    private static final int initialDownloads = 4; // Submissions downloaded at once to start with
+    private static final int maxDownloads = 16; // Most submissions downloaded at once
     private JTextField userField;
     private JButton dlFavButton, dlGalleryButton, dlScrapsButton, closeButton, stopButton;
     private JProgressBar pageProgressBar, subProgressBar;
+    private JLabel limitLabel;
     private JTextArea dlOutput;
     private final App app;
-    private CountDownLatch latch;
     private DownloadTask task;
     private volatile boolean stop = false;
 
@@ -115,6 +119,14 @@ public class DownloadDialog extends JDialog implements ActionListener, PropertyC
         cs.gridwidth = 2;
         dialogPanel.add(subProgressBar, cs);
 
+        // Add concurrency label
+        limitLabel = new JLabel("Concurrency: " + initialDownloads);
+        limitLabel.setPreferredSize(new Dimension(110, 20));
+        cs.gridx = 6;
+        cs.gridy = 0;
+        cs.gridwidth = 1;
+        dialogPanel.add(limitLabel, cs);
+
         // Add output text area
         dlOutput = new JTextArea(20, 80);
         dlOutput.setMargin(new Insets(5, 5, 5, 5));
@@ -233,6 +245,8 @@ public class DownloadDialog extends JDialog implements ActionListener, PropertyC
         stopButton.setEnabled(true);
 
         // Update progress bars
+        pageProgressBar.setValue(0);
+        subProgressBar.setValue(0);
         pageProgressBar.setIndeterminate(true);
         subProgressBar.setIndeterminate(true);
         pageProgressBar.setString("Initializing...");
@@ -253,33 +267,36 @@ public class DownloadDialog extends JDialog implements ActionListener, PropertyC
      */
     public void propertyChange(PropertyChangeEvent evt)
     {
-        // Set number of pages to download
-        if (evt.getPropertyName().equals("numPages"))
+        // Set number of pages found so far, while the scanner is still looking
+        if (evt.getPropertyName().equals("pagesFound"))
+        {
+            int found = (Integer) evt.getNewValue();
+            pageProgressBar.setIndeterminate(false);
+            pageProgressBar.setMaximum(found);
+            pageProgressBar.setString("Page " + pageProgressBar.getValue() + "/" + found + "+");
+        }
+        // Set number of pages to download, once the scanner found them all
+        else if (evt.getPropertyName().equals("numPages"))
         {
             int numPages = (Integer) evt.getNewValue();
             pageProgressBar.setIndeterminate(false);
             pageProgressBar.setMaximum(numPages);
-            pageProgressBar.setValue(0);
-            pageProgressBar.setString("Page 0/" + numPages);
+            pageProgressBar.setString("Page " + pageProgressBar.getValue() + "/" + numPages);
         }
-        // Increment current page number
+        // Set number of pages whose submissions are all finished
         else if (evt.getPropertyName().equals("incrementPage"))
         {
             int progress = (Integer) evt.getNewValue();
             pageProgressBar.setValue(progress);
             pageProgressBar.setString("Page " + progress + "/" + pageProgressBar.getMaximum());
-            if (progress != pageProgressBar.getMaximum()) {
-                subProgressBar.setIndeterminate(true);
-            }
         }
-        // Set number of submissions on the current page
+        // Set number of submissions found so far
         else if (evt.getPropertyName().equals("numSubs"))
         {
             int numSubs = (Integer) evt.getNewValue();
             subProgressBar.setIndeterminate(false);
             subProgressBar.setMaximum(numSubs);
-            subProgressBar.setValue(0);
-            subProgressBar.setString("Submission 0/" + numSubs);
+            subProgressBar.setString("Submission " + subProgressBar.getValue() + "/" + numSubs);
         }
         // Increment current submission number
         else if (evt.getPropertyName().equals("incrementSub"))
@@ -314,6 +331,11 @@ public class DownloadDialog extends JDialog implements ActionListener, PropertyC
             pageProgressBar.setIndeterminate(false);
             subProgressBar.setIndeterminate(false);
         }
+        // Number of downloads allowed at once changed
+        else if (evt.getPropertyName().equals("limit"))
+        {
+            limitLabel.setText("Concurrency: " + evt.getNewValue());
+        }
         // Invalid user state
         else if (evt.getPropertyName().equals("invalidUser"))
         {
@@ -353,6 +375,12 @@ public class DownloadDialog extends JDialog implements ActionListener, PropertyC
 
         private String type;
         private ExecutorService executor;
+        private Thread scanner; // Fetches the listing pages ahead of the downloads
+        private DownloadLimiter limiter; // Decides how many submissions are downloaded at once
+        private WebClientPool clients; // Web clients shared by the workers
+        private final AtomicInteger finishedSubs = new AtomicInteger(); // Submissions done, whatever the outcome
+        private final AtomicInteger finishedPages = new AtomicInteger(); // Pages whose submissions are all done
+        private int foundSubs; // Submissions handed to the pool so far
         private boolean invalidUser;
 
         //==============================================================================================================
@@ -409,79 +437,59 @@ public class DownloadDialog extends JDialog implements ActionListener, PropertyC
                 return null;
             }
 
-            // Find the total number of pages
-            PageScan scan = findNumPages(
+            // Scan the listing pages on their own thread, handing each one over as soon as it is found
+            BlockingQueue<ListingPage> pages = new ArrayBlockingQueue<ListingPage>(pageQueueSize);
+            scanner = new Thread(new PageScanner(this,
                     "http://www.furaffinity.net/" + type + "/" + userField.getText().trim() + "/",
                     userField.getText().trim(),
-                    type);
-
-            assert scan != null;
-            int numPages = scan.numPages;
-
-            if (numPages == -1) {
-                return null;
-            }
-
-            // Update the progress bars
-            firePropertyChange("numPages", 0, numPages);
-            appendToLog("Number of pages: " + numPages + "\n");
+                    type,
+                    pages), "Page scanner");
+            scanner.setDaemon(true);
+            scanner.start();
 
             // Record start time
             long startTime = System.nanoTime();
 
             // Create thread pool
-            executor = newFixedThreadPool(4);
-            int pageNum = 1;
+            executor = newFixedThreadPool(maxDownloads);
+            clients = new WebClientPool(app.getWebClient().getCookieManager().getCookies());
+            limiter = new DownloadLimiter(initialDownloads, 1, maxDownloads, new DownloadLimiter.Listener() {
+                public void limitChanged(int limit, String reason) {
+                    appendToLog("Concurrency " + limit + ": " + reason + "\n");
+                    firePropertyChange("limit", 0, limit);
+                }
+            });
+            firePropertyChange("limit", 0, limiter.getLimit());
 
-            // Loop through each page
-            while (!scan.queue.isEmpty())
+            // Loop through each page as it arrives, until the scanner runs out of pages
+            while (true)
             {
-                HtmlPage currPage = scan.queue.poll();
-
-                List<HtmlAnchor> anchors = currPage.getAnchors();
-                List<HtmlAnchor> artAnchors = new ArrayList<HtmlAnchor>();
-                pattern = Pattern.compile("(/view/\\d+/)");
-                Set<String> set = new HashSet<String>();
-
-                // Gather all the submission anchors
-                for (HtmlAnchor anchor : anchors) {
-                    m = pattern.matcher(anchor.getHrefAttribute());
-                    if (m.find()) {
-                        if (set.contains(anchor.getHrefAttribute())) {
-                            continue;
-                        } else {
-                            set.add(anchor.getHrefAttribute());
-                        }
-                        artAnchors.add(anchor);
-                    }
+                ListingPage listing = pages.take();
+
+                if (listing == ListingPage.end) {
+                    break;
                 }
 
+                long[] views = listing.views;
+
                 // Update progress bars
-                firePropertyChange("numSubs", 0, artAnchors.size());
-                appendToLog("Number of submission on page " + pageNum + ": " + artAnchors.size() + "\n");
+                foundSubs += views.length;
+                firePropertyChange("numSubs", 0, foundSubs);
+                appendToLog("Number of submission on page " + listing.number + ": " + views.length + "\n");
 
-                // Use a latch to synchronize threads
-                latch = new CountDownLatch(artAnchors.size());
+                // Nothing to wait for on an empty page
+                AtomicInteger remaining = new AtomicInteger(views.length);
 
-                // Create a new worker for each submission to download
-                for (HtmlAnchor anchor : artAnchors) {
-                    Runnable worker = new DownloadWorker("http://www.furaffinity.net" + anchor.getHrefAttribute());
-                    executor.execute(worker);
+                if (views.length == 0) {
+                    firePropertyChange("incrementPage", 0, finishedPages.incrementAndGet());
                 }
 
-                // Update the progress bar every 10 milliseconds
-                while (latch.getCount() > 0) {
-                    firePropertyChange("incrementSub", 0,
-                            (int) (artAnchors.size() - latch.getCount()));
-                    Thread.sleep(10);
+                // Start a worker for each submission, waiting only for the limiter, so the
+                // workers keep going from one page to the next
+                for (long view : views) {
+                    schedule(new DownloadWorker("http://www.furaffinity.net/view/" + view + "/", clients, limiter),
+                            remaining);
                 }
-
-                // Wait for latch to be ready
-                latch.await();
-
-                // Move onto the next page
-                firePropertyChange("incrementPage", 0, pageNum);
-                pageNum++;
             }
 
             // Shutdown thread pool
@@ -499,23 +507,64 @@ public class DownloadDialog extends JDialog implements ActionListener, PropertyC
             return null;
         }
 
+        /**
+         * Starts a worker on the pool, once the limiter lets another
+         * download run. When the worker is done, however it ended, the
+         * submission and page counts are updated.
+         *
+         * @param worker     worker for a single submission
+         * @param remaining  submissions of the worker's page not done yet
+         * @throws InterruptedException  if the task is stopped while waiting
+         */
+        private void schedule(final DownloadWorker worker, final AtomicInteger remaining) throws InterruptedException
+        {
+            // Wait until another download may run
+            limiter.acquire();
+
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        worker.run();
+                    } finally {
+                        limiter.release();
+                        firePropertyChange("incrementSub", 0, finishedSubs.incrementAndGet());
+
+                        if (remaining.decrementAndGet() == 0) {
+                            firePropertyChange("incrementPage", 0, finishedPages.incrementAndGet());
+                        }
+                    }
+                }
+            });
+        }
+
         @Override
         protected void done()
         {
-            // Task was cancelled
-            if (isCancelled())
-            {
-                // Shutdown thread pool
-                executor.shutdownNow();
+            // Stop scanning pages nobody will download
+            if (scanner != null) {
+                scanner.interrupt();
+            }
 
-                // Wait for thread pool to terminate
+            // Find out whether the task ended because of an error
+            boolean failed = false;
+
+            if (!isCancelled())
+            {
                 try {
-                    while (!executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS)) {
-                        Thread.sleep(10);
-                    }
-                } catch (Exception e) {
-                    appendToLog("Error stopping download:\n" + getStackTrace(e));
+                    get();
+                } catch (ExecutionException e) {
+                    appendToLog("Error downloading:\n" + getStackTrace(e.getCause()));
+                    failed = true;
+                } catch (InterruptedException e) {
+                    failed = true;
                 }
+            }
+
+            // Task was cancelled or failed
+            if (isCancelled() || failed)
+            {
+                // Stop the workers before their web clients are closed
+                stopWorkers();
 
                 appendToLog("Download stopped\n");
                 stop = true;
@@ -538,11 +587,39 @@ public class DownloadDialog extends JDialog implements ActionListener, PropertyC
                 stopButton.setEnabled(false);
             }
 
+            // Close the web clients once the workers are done with them
+            if (clients != null) {
+                appendToLog(clients.report());
+                clients.close();
+            }
+
             // Re-enable controls
             dlFavButton.setEnabled(true);
             dlGalleryButton.setEnabled(true);
             dlScrapsButton.setEnabled(true);
         }
+
+        /**
+         * Shuts down the thread pool, if the downloads got that far, and
+         * waits for the running workers to finish.
+         */
+        private void stopWorkers()
+        {
+            if (executor == null) {
+                return;
+            }
+
+            executor.shutdownNow();
+
+            // Wait for thread pool to terminate
+            try {
+                while (!executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS)) {
+                    Thread.sleep(10);
+                }
+            } catch (Exception e) {
+                appendToLog("Error stopping download:\n" + getStackTrace(e));
+            }
+        }
     }
 
     //==================================================================================================================
@@ -553,7 +630,6 @@ public class DownloadDialog extends JDialog implements ActionListener, PropertyC
      * This implements a worker thread that will download the given submission, no matter
      * what the content may be!
      */
-    @SuppressWarnings("unchecked")
     class DownloadWorker implements Runnable
     {
         //==============================================================================================================
@@ -561,6 +637,8 @@ public class DownloadDialog extends JDialog implements ActionListener, PropertyC
         //==============================================================================================================
 
         private String url;
+        private final WebClientPool clients;
+        private final DownloadLimiter limiter;
 
         //==============================================================================================================
         // Constructor
@@ -569,11 +647,15 @@ public class DownloadDialog extends JDialog implements ActionListener, PropertyC
         /**
          * Creates a new worker thread for downloading a submission.
          *
-         * @param url  submissions's url
+         * @param url      submissions's url
+         * @param clients  web clients of the download task
+         * @param limiter  told how each request went
          */
-        DownloadWorker(String url)
+        DownloadWorker(String url, WebClientPool clients, DownloadLimiter limiter)
         {
             this.url = url;
+            this.clients = clients;
+            this.limiter = limiter;
         }
 
         //==============================================================================================================
@@ -581,45 +663,48 @@ public class DownloadDialog extends JDialog implements ActionListener, PropertyC
         //==============================================================================================================
 
         /**
-         * Thread's workload.
+         * Thread's workload. Borrows a web client for the download and
+         * gives it back afterwards.
          */
         public void run()
         {
-            // Create a web client
-            final WebClient webClient = new WebClient();
-            webClient.getOptions().setCssEnabled(false);
-            webClient.getOptions().setJavaScriptEnabled(false);
-            webClient.getOptions().setTimeout(30000);
-
-            File file = new File("cookie.file");
-            Set<Cookie> cookies;
+            // Record start time, including getting a client
+            long startTime = System.nanoTime();
+            WebClient webClient = clients.acquire();
+            long setupTime = System.nanoTime() - startTime;
 
-            // Read in cookies
             try {
-                ObjectInputStream in = new ObjectInputStream(new FileInputStream(file));
-                cookies = (Set<Cookie>) in.readObject();
-                in.close();
-            } catch (Exception e) {
-                e.printStackTrace();
-                return;
+                download(webClient, startTime, setupTime);
+            } finally {
+                clients.release(webClient);
             }
+        }
 
-            // Add cookies to client
-            for (Cookie cookie : cookies) {
-                webClient.getCookieManager().addCookie(cookie);
-            }
+        //==============================================================================================================
+        // Helper Methods
+        //==============================================================================================================
 
-            // Record start time
-            long startTime = System.nanoTime();
+        /**
+         * Downloads the submission and adds it to the stash.
+         *
+         * @param webClient  client to download with
+         * @param startTime  when the worker started
+         * @param setupTime  time spent getting the client, in nanoseconds
+         */
+        private void download(WebClient webClient, long startTime, long setupTime)
+        {
             HtmlPage artView;
 
             int tries = 0;
 
-            // Attempt to get submission page
+            // Attempt to get submission page, timing it for the limiter
             while (true) {
+                long requested = System.nanoTime();
                 try {
                     artView = webClient.getPage(url);
+                    limiter.succeeded(System.nanoTime() - requested);
                 } catch (Exception e) {
+                    limiter.failed(e);
                     tries++;
                     if (tries == maxTries) {
                         appendToLog("Error loading web page:\n" + getStackTrace(e));
@@ -644,274 +729,275 @@ public class DownloadDialog extends JDialog implements ActionListener, PropertyC
                     String[] split = element.getAttribute("href").split("[/]");
                     String submission = split[split.length - 1];
 
-                    // Check if the stash already has this artwork
-                    if (app.stashContains(submission)) {
+                    // Claim the artwork, unless the stash has it or another worker is fetching it
+                    if (!app.claimForStash(submission)) {
                         appendToLog("Skipped: " + submission + "\n");
                         break;
                     }
 
-                    UnexpectedPage artSrc = null;
-                    boolean isTxt = false;
-                    tries = 0;
-
-                    // Attempt to view submission source
-                    while (true) {
-                        try {
-                            artSrc = webClient.getPage("http:" + element.getAttribute("href"));
-                        } catch (Exception e) {
-                            // Text page has been found
-                            if (e instanceof ClassCastException)
-                            {
-                                isTxt = true;
-                                break;
-                            }
-                            // Connection error so try again
-                            else
-                            {
-                                tries++;
-                                if (tries == maxTries) {
-                                    appendToLog("Error loading web page:\n" + getStackTrace(e));
-                                    return;
-                                }
-                                continue;
-                            }
-                        }
-                        break;
-                    }
-
-                    // Submission is text
-                    if (isTxt)
-                    {
-                        TextPage txt;
+                    try {
+                        File newArtwork = new File(app.getDownloadFolder().getAbsolutePath() + "/" + submission);
+                        BinaryFetcher fetcher = new BinaryFetcher(webClient);
+                        BinaryFetcher.Result result = null;
                         tries = 0;
 
-                        // Attempt to view submission source
-                        while (true) {
+                        // Stream the file to disk, trying again on connection errors
+                        while (result == null) {
                             try {
-                                txt = webClient.getPage("http:" + element.getAttribute("href"));
-                            } catch (Exception e2) {
+                                result = fetcher.fetch("http:" + element.getAttribute("href"), newArtwork);
+                            } catch (IOException e) {
+                                FileUtils.deleteQuietly(newArtwork);
+                                limiter.failed(e);
                                 tries++;
                                 if (tries == maxTries) {
-                                    appendToLog("Error loading web page:\n" + getStackTrace(e2));
-                                    return;
+                                    appendToLog("Error downloading file:\n" + getStackTrace(e));
+                                    break;
                                 }
-                                continue;
                             }
-                            break;
                         }
 
-                        PrintWriter writer = null;
-
-                        // Write contents to a new text file
-                        try {
-                            writer = new PrintWriter(
-                                    app.getDownloadFolder().getAbsolutePath() + "/" + submission);
-                            writer.print(txt.getContent());
-                        } catch (Exception e2) {
-                            appendToLog("Error writing to file:\n" + getStackTrace(e2));
-                            return;
-                        } finally {
-                            if (writer != null) writer.close();
+                        // Throw away a partial file rather than putting it in the stash
+                        if (result == null) {
+                            break;
                         }
 
                         // Add submission to the stash
-                        app.addToStash(new File(
-                                app.getDownloadFolder().getAbsolutePath() + "/" + submission));
-                    }
-                    // Submission is an image, music, animation, etc
-                    else
-                    {
-                        // Setup input and output streams
-                        InputStream inputStream = null;
-                        OutputStream outputStream = null;
-                        File newArtwork = new File(
-                                app.getDownloadFolder().getAbsolutePath() + "/" + submission);
-
-                        // Read content into file
-                        try {
-                            inputStream = artSrc.getInputStream();
-                            outputStream = new FileOutputStream(newArtwork);
-
-                            int read;
-                            byte[] bytes = new byte[4096];
-
-                            // Read in 4096 bytes at a time
-                            while ((read = inputStream.read(bytes)) != -1) {
-                                outputStream.write(bytes, 0, read);
-                            }
+                        app.addToStash(newArtwork, result.hash);
 
-                        } catch (Exception e) {
-                            appendToLog("Error writing to file:\n" + getStackTrace(e));
-                        } finally {
-                            // Clean up input and output streams
-                            try {
-                                if (inputStream != null) inputStream.close();
-                                if (outputStream != null) outputStream.close();
-                            } catch (IOException e) {
-                                appendToLog("Error writing to file:\n" + getStackTrace(e));
-                            }
-                        }
+                        // Record end time
+                        long endTime = System.nanoTime();
+                        appendToLog("Downloaded: " + submission + " (" + result.size + " bytes)\n");
+                        appendToLog("Download time: " + ((endTime - startTime) / 1000000000.0)
+                                + " (client setup " + (setupTime / 1000) / 1000.0 + " ms)\n");
 
-                        // Add submission to the stash
-                        app.addToStash(newArtwork);
+                        break;
+                    } finally {
+                        // Let another worker try if this one did not add it to the stash
+                        app.abortClaim(submission);
                     }
-
-                    // Record end time
-                    long endTime = System.nanoTime();
-                    appendToLog("Downloaded: " + submission + "\n");
-                    appendToLog("Download time: " + ((endTime - startTime) / 1000000000.0) + "\n");
-
-                    break;
                 }
             }
-
-            // Decrement the latch
-            latch.countDown();
         }
     }
 
+    //==================================================================================================================
+    // PageScanner
+    //==================================================================================================================
+
     /**
-     * Counts the number of pages of favorites, gallery, or scraps. Unfortunately, FA
-     * changed its web API so this has to run in O(n) for the time being.
+     * Walks the listing pages of favorites, gallery, or scraps on its own
+     * thread and hands each page to the download task as soon as it is
+     * loaded, so downloads start with the first page instead of after the
+     * last one. The queue between the two is bounded, so the scanner waits
+     * when it gets too far ahead. Unfortunately, FA changed its web API so
+     * the pages have to be walked one by one for the time being.
      *
-     * @param url   start link
-     * @param user  username
-     * @param type  favorites, gallery, scraps
-     * @return      number of pages and page queue
+     * Each page is boiled down to its submission numbers and the link to
+     * the next page as soon as it is loaded. The DOM is dropped right
+     * away, so a long run holds a few numbers per page rather than every
+     * page it has seen.
      */
-    private PageScan findNumPages(String url, String user, String type)
+    class PageScanner implements Runnable
     {
-        PageScan scan = new PageScan();
-        int tries = 0;
+        //==============================================================================================================
+        // Properties
+        //==============================================================================================================
 
-        // Need to count pages this way for favorites
-        if (type.equals("favorites")) {
+        private final DownloadTask owner;
+        private final String url;
+        private final String user;
+        private final String type;
+        private final BlockingQueue<ListingPage> pages;
+        private final Pattern viewPattern = Pattern.compile("/view/(\\d+)/");
+        private int found;
 
-            HtmlPage startPage;
+        //==============================================================================================================
+        // Constructor
+        //==============================================================================================================
 
-            // Try to get the user's favorites, gallery, or scraps
-            while (true) {
-                try {
-                    startPage = app.getWebClient().getPage(url);
-                    scan.queue.add(startPage);
-                } catch (Exception e) {
-                    tries++;
-                    if (tries == maxTries) {
-                        appendToLog("Error loading web page:\n" + getStackTrace(e));
-                        return null;
-                    }
-                    continue;
-                }
-                break;
-            }
+        /**
+         * Creates a scanner for a download task.
+         *
+         * @param owner  task the pages are for
+         * @param url    start link
+         * @param user   username
+         * @param type   favorites, gallery, scraps
+         * @param pages  queue the pages are handed over on
+         */
+        PageScanner(DownloadTask owner, String url, String user, String type, BlockingQueue<ListingPage> pages)
+        {
+            this.owner = owner;
+            this.url = url;
+            this.user = user;
+            this.type = type;
+            this.pages = pages;
+        }
 
-            HtmlPage currPage = startPage;
+        //==============================================================================================================
+        // Methods
+        //==============================================================================================================
 
-            while (true) {
+        /**
+         * Thread's workload. Always ends by handing over the end marker, so
+         * the task never waits for pages that will not come.
+         */
+        public void run()
+        {
+            try {
+                if (type.equals("favorites")) {
+                    scanFavorites();
+                } else {
+                    scanNumbered();
+                }
 
-                List<HtmlAnchor> anchors = currPage.getAnchors();
-                Pattern pattern = Pattern.compile("(/favorites/" + user + "/\\d+/next)");
-                boolean nextPageFound = false;
+                appendToLog("Number of pages: " + found + "\n");
+                owner.firePropertyChange("numPages", 0, found);
+            } catch (InterruptedException e) {
+                // Download was stopped
+                return;
+            } catch (Exception e) {
+                appendToLog("Error loading web page:\n" + getStackTrace(e));
+            }
 
-                // Find the next button's link
-                for (HtmlAnchor anchor : anchors) {
+            try {
+                pages.put(ListingPage.end);
+            } catch (InterruptedException e) {
+                // Download was stopped
+            }
+        }
 
-                    Matcher m = pattern.matcher(anchor.getHrefAttribute());
+        //==============================================================================================================
+        // Helper Methods
+        //==============================================================================================================
 
-                    // Next button works!
-                    if (m.find()) {
+        /**
+         * Follows the next button of the favorites from page to page.
+         */
+        private void scanFavorites() throws Exception
+        {
+            Pattern pattern = Pattern.compile("(/favorites/" + user + "/\\d+/next)");
+            String next = url;
 
-                        nextPageFound = true;
-                        tries = 0;
+            // If there is no next page, we're done!
+            while (next != null)
+            {
+                HtmlPage currPage = load(next);
+                next = nextOf(currPage, pattern);
+                hand(viewsOf(currPage));
+            }
+        }
 
-                        while (true) {
-                            try {
-                                // Click next button and then add the page to the queue
-                                currPage = anchor.click();
-                                scan.queue.add(currPage);
-                                scan.numPages++;
-                            } catch (Exception e) {
-                                tries++;
-                                if (tries == maxTries) {
-                                    appendToLog("Error loading web page:\n" + getStackTrace(e));
-                                    return null;
-                                }
-                                continue;
-                            }
-                            break;
-                        }
+        /**
+         * Goes through gallery or scraps pages one by one until a page has
+         * no submissions to list.
+         */
+        private void scanNumbered() throws Exception
+        {
+            Pattern pattern = Pattern.compile("(There are no submissions to list)");
 
-                        break;
-                    }
-                }
+            for (int pageNum = 1; ; pageNum++)
+            {
+                HtmlPage currPage = load(url + "/" + pageNum);
 
-                // If there is no next page, we're done!
-                if (!nextPageFound) {
+                // We're done if we found the end
+                if (pattern.matcher(currPage.asText()).find()) {
                     break;
                 }
+
+                hand(viewsOf(currPage));
             }
-        } else {
+        }
 
-            int pageNum = 1;
-            scan.numPages = 0;
-            boolean foundEnd = false;
+        /**
+         * Loads a listing page, trying again on connection errors.
+         */
+        private HtmlPage load(String link) throws Exception
+        {
+            int tries = 0;
 
-            // Just go through pages one by one
             while (true) {
+                try {
+                    return app.getWebClient().getPage(link);
+                } catch (Exception e) {
+                    tries++;
+                    if (tries == maxTries || Thread.currentThread().isInterrupted()) {
+                        throw e;
+                    }
+                }
+            }
+        }
 
-                HtmlPage currPage;
+        /**
+         * Hands a page over to the task, waiting while the queue is full.
+         */
+        private void hand(long[] views) throws InterruptedException
+        {
+            found++;
+            pages.put(new ListingPage(found, views));
+            owner.firePropertyChange("pagesFound", 0, found);
+        }
 
-                while (true) {
-                    try {
-                        currPage = app.getWebClient().getPage(url + "/" + pageNum);
-
-                        // Check if there there are no submissions to list
-                        String src = currPage.asText();
-                        Pattern pattern = Pattern.compile("(There are no submissions to list)");
-                        Matcher m = pattern.matcher(src);
-
-                        if (!m.find()) {
-                            scan.queue.add(currPage);
-                            scan.numPages++;
-                        } else {
-                            foundEnd = true;
-                        }
+        /**
+         * Returns the submission numbers linked from a page, in order and
+         * without repeats.
+         */
+        private long[] viewsOf(HtmlPage page)
+        {
+            Set<Long> views = new LinkedHashSet<Long>();
 
-                    } catch (Exception e) {
-                        tries++;
-                        if (tries == maxTries) {
-                            appendToLog("Error loading web page:\n" + getStackTrace(e));
-                            return null;
-                        }
-                        continue;
-                    }
-                    break;
+            // Gather all the submission anchors
+            for (HtmlAnchor anchor : page.getAnchors()) {
+                Matcher m = viewPattern.matcher(anchor.getHrefAttribute());
+                if (m.find()) {
+                    views.add(Long.parseLong(m.group(1)));
                 }
+            }
 
-                // We're done if we found the end
-                if (foundEnd) {
-                    break;
-                }
+            long[] ids = new long[views.size()];
+            int i = 0;
 
-                pageNum++;
+            for (Long view : views) {
+                ids[i++] = view;
             }
+
+            return ids;
         }
 
-        return scan;
+        /**
+         * Returns the full link of the first anchor matching a pattern, or
+         * null if there is none.
+         */
+        private String nextOf(HtmlPage page, Pattern pattern) throws IOException
+        {
+            for (HtmlAnchor anchor : page.getAnchors()) {
+                if (pattern.matcher(anchor.getHrefAttribute()).find()) {
+                    return page.getFullyQualifiedUrl(anchor.getHrefAttribute()).toString();
+                }
+            }
+
+            return null;
+        }
     }
 
+    //==================================================================================================================
+    // ListingPage
+    //==================================================================================================================
+
     /**
-     * Return type for the findNumPages methods. Basically just the number
-     * of pages and a queue containing cached pages.
+     * What is left of a listing page once it has been scanned: the
+     * submissions it links to and where it is in the listing.
      */
-    public class PageScan {
+    static class ListingPage
+    {
+        static final ListingPage end = new ListingPage(0, new long[0]); // Marks the last page
 
-        public int numPages;
-        public LinkedList<HtmlPage> queue;
+        final int number; // Position of the page, from 1
+        final long[] views; // Submission numbers on the page
 
-        PageScan() {
-            numPages = 1;
-            queue = new LinkedList<HtmlPage>();
+        ListingPage(int number, long[] views)
+        {
+            this.number = number;
+            this.views = views;
         }
     }
 }
@@ -0,0 +1,272 @@
+package seledrex.app;
+
+//======================================================================================================================
+// Imports
+//======================================================================================================================
+
+import com.gargoylesoftware.htmlunit.FailingHttpStatusCodeException;
+import org.apache.http.conn.ConnectTimeoutException;
+import java.net.SocketTimeoutException;
+import java.util.Locale;
+
+//======================================================================================================================
+// Download Limiter
+//======================================================================================================================
+
+/**
+ * Decides how many submissions are downloaded at once, instead of a fixed
+ * number of workers. The limit grows by one each time a limit's worth of
+ * submission pages in a row came back quickly, and is halved when the
+ * server times out, answers with a 5xx error, or asks to slow down (429).
+ * It also drops by one when pages take much longer than the fastest of the
+ * recent pages, before the server starts failing. Only the last pages are
+ * kept for this, so a single page that came back unusually fast is
+ * forgotten after a while, as is a server that got slower for good. After
+ * a drop, the limit is not lowered again for a few seconds, so one burst
+ * of failures from requests that were already in flight only counts once.
+ *
+ * A timeout counts wherever it appears in the chain of causes, since
+ * HtmlUnit wraps the connection's exceptions in its own.
+ *
+ * Only the submission pages are timed, as they are about the same size
+ * every time, unlike the files. Every change of the limit is passed to a
+ * listener with the reason for it.
+ *
+ * @author Eric Auster
+ */
+class DownloadLimiter
+{
+    //==================================================================================================================
+    // Properties
+    //==================================================================================================================
+
+    private static final long cooldown = 5000000000L; // Least time between two drops, in ns
+    private static final double slowFactor = 3.0; // Slowdown over the fastest page that counts as congestion
+    private static final double healthyFactor = 1.5; // Slowdown over the fastest page that still counts as fast
+    private static final double smoothing = 0.2; // Weight of the newest page in the average
+    private static final int window = 64; // Recent pages the fastest page is taken from
+
+    /**
+     * Told about every change of the limit.
+     */
+    interface Listener
+    {
+        /**
+         * @param limit   new limit
+         * @param reason  why it changed
+         */
+        void limitChanged(int limit, String reason);
+    }
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final Listener listener;
+    private int limit; // Downloads allowed at once
+    private int inFlight; // Downloads running
+    private int fast; // Fast pages in a row since the last change
+    private double average = -1; // Smoothed page time in ms, -1 until the first page
+    private final double[] recent; // Times of the last pages in ms, oldest overwritten first
+    private int pages; // Entries of recent in use
+    private int next; // Entry of recent the next page goes in
+    private long lastDrop; // When the limit was last lowered, in ns
+
+    //==================================================================================================================
+    // Constructor
+    //==================================================================================================================
+
+    /**
+     * Creates a limiter.
+     *
+     * @param initial   limit to start with
+     * @param minLimit  lowest limit
+     * @param maxLimit  highest limit
+     * @param listener  told about every change of the limit
+     */
+    DownloadLimiter(int initial, int minLimit, int maxLimit, Listener listener)
+    {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initial));
+        this.listener = listener;
+        this.recent = new double[window];
+        this.lastDrop = System.nanoTime() - cooldown;
+    }
+
+    //==================================================================================================================
+    // Methods
+    //==================================================================================================================
+
+    /**
+     * Waits until another download may start, and counts it as running.
+     *
+     * @throws InterruptedException  if the download is stopped while waiting
+     */
+    synchronized void acquire() throws InterruptedException
+    {
+        while (inFlight >= limit) {
+            wait();
+        }
+
+        inFlight++;
+    }
+
+    /**
+     * Counts a download as finished.
+     */
+    synchronized void release()
+    {
+        inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * Records a submission page that loaded.
+     *
+     * @param nanos  time the page took
+     */
+    void succeeded(long nanos)
+    {
+        double millis = nanos / 1000000.0;
+        String reason = null;
+        int changed;
+
+        synchronized (this)
+        {
+            recent[next] = millis;
+            next = (next + 1) % window;
+            pages = Math.min(pages + 1, window);
+            double fastest = fastest();
+            average = average < 0 ? millis : average + smoothing * (millis - average);
+
+            if (average > fastest * slowFactor) {
+                // Pages are slowing down, so ease off before the server fails
+                fast = 0;
+                reason = drop(limit - 1, String.format(Locale.ROOT, "pages slowed to %.0f ms from %.0f ms",
+                        average, fastest));
+            } else if (average <= fastest * healthyFactor && ++fast >= limit && limit < maxLimit) {
+                // A limit's worth of fast pages in a row, so try one more
+                fast = 0;
+                limit++;
+                notifyAll();
+                reason = String.format(Locale.ROOT, "raised, pages take %.0f ms", average);
+            }
+
+            changed = limit;
+        }
+
+        if (reason != null) {
+            listener.limitChanged(changed, reason);
+        }
+    }
+
+    /**
+     * Records a request that failed. Timeouts, server errors and requests
+     * to slow down halve the limit; other failures leave it alone.
+     *
+     * @param e  what went wrong
+     */
+    void failed(Throwable e)
+    {
+        int status = statusOf(e);
+        String cause;
+
+        if (isTimeout(e)) {
+            cause = "timeout";
+        } else if (status >= 500 || status == 429) {
+            cause = "server returned " + status;
+        } else {
+            return;
+        }
+
+        String reason;
+        int changed;
+
+        synchronized (this) {
+            fast = 0;
+            reason = drop(limit / 2, "halved after " + cause);
+            changed = limit;
+        }
+
+        if (reason != null) {
+            listener.limitChanged(changed, reason);
+        }
+    }
+
+    /**
+     * @return  downloads allowed at once
+     */
+    synchronized int getLimit() { return limit; }
+
+    //==================================================================================================================
+    // Helper Methods
+    //==================================================================================================================
+
+    /**
+     * Lowers the limit, unless it was lowered a moment ago or is already
+     * as low as it goes. Must hold the lock.
+     *
+     * @return  the reason, or null if the limit did not change
+     */
+    private String drop(int target, String reason)
+    {
+        long now = System.nanoTime();
+        target = Math.max(minLimit, target);
+
+        if (target >= limit || now - lastDrop < cooldown) {
+            return null;
+        }
+
+        limit = target;
+        lastDrop = now;
+
+        // Judge the new limit by the pages that come after it
+        average = -1;
+
+        return reason;
+    }
+
+    /**
+     * Returns the fastest of the recent page times. Must hold the lock.
+     */
+    private double fastest()
+    {
+        double fastest = Double.MAX_VALUE;
+
+        for (int i = 0; i < pages; i++) {
+            fastest = Math.min(fastest, recent[i]);
+        }
+
+        return fastest;
+    }
+
+    /**
+     * Checks if a failure, or anything that caused it, is a timeout.
+     */
+    private static boolean isTimeout(Throwable e)
+    {
+        // Causes can loop, so give up after a few
+        for (int depth = 0; e != null && depth < 16; depth++, e = e.getCause()) {
+            if (e instanceof SocketTimeoutException || e instanceof ConnectTimeoutException) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns the HTTP status of a failure, or 0 if it has none.
+     */
+    private static int statusOf(Throwable e)
+    {
+        if (e instanceof FailingHttpStatusCodeException) {
+            return ((FailingHttpStatusCodeException) e).getStatusCode();
+        }
+
+        if (e instanceof BinaryFetcher.StatusException) {
+            return ((BinaryFetcher.StatusException) e).status;
+        }
+
+        return 0;
+    }
+}
@@ -0,0 +1,466 @@
+package seledrex.app;
+
+//======================================================================================================================
+// Imports
+//======================================================================================================================
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//======================================================================================================================
+// File Transfer
+//======================================================================================================================
+
+/**
+ * Puts files from the input folders into the stash. There are four ways
+ * of doing so:
+ *
+ * TRANSFER  copies inside the kernel with FileChannel.transferTo
+ * MOVE      links the file in place and then deletes it, or moves it
+ *           across file stores
+ * LINK      creates a hard link, so no bytes are copied and no space is used
+ * COPY      streams the bytes through a buffer in the JVM
+ *
+ * In automatic mode, files on the same file store as the stash are hard
+ * linked and everything else is transferred. Moving is never picked
+ * automatically, since it empties the input folders. When a mode fails
+ * for a pair of file stores, the next one down is remembered for that
+ * pair, ending with COPY. Only errors saying the mode is not supported
+ * there cause a fallback; a file that cannot be read or written fails on
+ * its own, and the next file is tried in the same mode. The number of
+ * files, bytes and time spent in each mode are kept so throughput can be
+ * reported after a sort.
+ *
+ * No mode ever replaces a file that is already at the target path.
+ *
+ * TRANSFER and COPY hash the bytes as they go, so the sort can check the
+ * copy for duplicates without reading the file again.
+ *
+ * @author Eric Auster
+ */
+class FileTransfer
+{
+    //==================================================================================================================
+    // Mode
+    //==================================================================================================================
+
+    enum Mode { TRANSFER, MOVE, LINK, COPY }
+
+    /**
+     * Mode used for a single file and the number of bytes put in the stash.
+     */
+    static final class Result
+    {
+        final Mode mode;
+        final long size;
+        final boolean hashed; // Whether the bytes were read, so their hash is known
+        final long hash; // Content hash of the bytes, if they were read
+
+        Result(Mode mode, long size)
+        {
+            this.mode = mode;
+            this.size = size;
+            this.hashed = false;
+            this.hash = 0;
+        }
+
+        Result(Mode mode, long size, long hash)
+        {
+            this.mode = mode;
+            this.size = size;
+            this.hashed = true;
+            this.hash = hash;
+        }
+    }
+
+    //==================================================================================================================
+    // Properties
+    //==================================================================================================================
+
+    private static final int bufferSize = 1024 * 1024;
+
+    // One buffer per copy thread, kept for the thread's next file
+    private static final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+    };
+
+    private final Mode preferred; // Mode selected by the user, null for automatic
+    private final Map<Path, FileStore> stores; // File store of each directory seen
+    private final Map<List<FileStore>, Mode> fallbacks; // Mode to use for a pair of file stores after a failure
+    private final AtomicLongArray files, bytes, nanos; // Counters indexed by mode
+
+    //==================================================================================================================
+    // Constructor
+    //==================================================================================================================
+
+    /**
+     * Creates a transfer with the given mode.
+     *
+     * @param preferred  mode to always use, or null to pick one per file store
+     */
+    FileTransfer(Mode preferred)
+    {
+        this.preferred = preferred;
+        stores = new ConcurrentHashMap<Path, FileStore>();
+        fallbacks = new ConcurrentHashMap<List<FileStore>, Mode>();
+        files = new AtomicLongArray(Mode.values().length);
+        bytes = new AtomicLongArray(Mode.values().length);
+        nanos = new AtomicLongArray(Mode.values().length);
+    }
+
+    /**
+     * @return  mode selected by the user, or null for automatic
+     */
+    Mode getPreferred() { return preferred; }
+
+    /**
+     * Reads a mode from a user setting.
+     *
+     * @param setting  transfer, move, link, copy, or anything else for automatic
+     * @return         selected mode, or null for automatic
+     */
+    static Mode parseMode(String setting)
+    {
+        if (setting != null) {
+            for (Mode mode : Mode.values()) {
+                if (mode.name().equalsIgnoreCase(setting.trim())) {
+                    return mode;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    //==================================================================================================================
+    // Methods
+    //==================================================================================================================
+
+    /**
+     * Puts the source file at the target path. The target must not exist.
+     *
+     * @param source  file to transfer
+     * @param target  path to create
+     * @return        mode that was used, size of the file, and its hash if it was read
+     * @throws IOException  if every mode failed
+     */
+    Result transfer(Path source, Path target) throws IOException
+    {
+        List<FileStore> pair = null;
+        Mode mode = preferred;
+
+        // Pick the mode for this pair of file stores
+        if (mode == null)
+        {
+            FileStore from = storeOf(source.toAbsolutePath().getParent());
+            FileStore to = storeOf(target.toAbsolutePath().getParent());
+            pair = Arrays.asList(from, to);
+            mode = fallbacks.get(pair);
+
+            if (mode == null) {
+                mode = from.equals(to) ? Mode.LINK : Mode.TRANSFER;
+            }
+        }
+
+        while (true)
+        {
+            long start = System.nanoTime();
+
+            try {
+                Result result = apply(mode, source, target);
+                int index = mode.ordinal();
+                files.incrementAndGet(index);
+                bytes.addAndGet(index, result.size);
+                nanos.addAndGet(index, System.nanoTime() - start);
+                return result;
+            } catch (IOException e) {
+                // A file that exists, vanished, cannot be read or changed under us is not fixed by another mode
+                if (mode == Mode.COPY || !isUnsupported(e)) throw e;
+            } catch (UnsupportedOperationException e) {
+                if (mode == Mode.COPY) throw e;
+            }
+
+            // Remember the fallback so the failing mode is not retried for every file
+            mode = mode == Mode.LINK ? Mode.TRANSFER : Mode.COPY;
+
+            if (pair != null) {
+                fallbacks.put(pair, mode);
+            }
+        }
+    }
+
+    /**
+     * Performs a single mode of transfer.
+     *
+     * @param mode    mode to use
+     * @param source  file to transfer
+     * @param target  path to create
+     * @return        mode, number of bytes put in the stash, and their hash if they were read
+     * @throws IOException  if the transfer failed
+     */
+    private static Result apply(Mode mode, Path source, Path target) throws IOException
+    {
+        switch (mode)
+        {
+            case LINK:
+                Files.createLink(target, source);
+                return new Result(mode, Files.size(target));
+
+            case MOVE:
+                move(source, target);
+                return new Result(mode, Files.size(target));
+
+            case TRANSFER:
+                return transferTo(source, target);
+
+            default:
+                return copy(source, target);
+        }
+    }
+
+    /**
+     * Moves a file without replacing one already at the target. A rename
+     * would replace it, so the file is linked in place, which fails if the
+     * target exists, and the source is deleted afterwards. Where links are
+     * not supported, such as across file stores, Files.move copies the
+     * file and refuses to replace the target as well.
+     *
+     * @param source  file to move
+     * @param target  path to create
+     * @throws IOException  if the move failed, a {@link FileAlreadyExistsException}
+     *                      if the target exists
+     */
+    private static void move(Path source, Path target) throws IOException
+    {
+        try {
+            Files.createLink(target, source);
+        } catch (UnsupportedOperationException e) {
+            Files.move(source, target);
+            return;
+        } catch (FileSystemException e) {
+            if (e instanceof FileAlreadyExistsException || !isUnsupported(e)) throw e;
+            Files.move(source, target);
+            return;
+        }
+
+        try {
+            Files.delete(source);
+        } catch (IOException e) {
+            // Leave the input folder as it was
+            Files.deleteIfExists(target);
+            throw e;
+        }
+    }
+
+    /**
+     * Checks if an error means a mode cannot be used between two file
+     * stores at all, rather than that a single file failed.
+     *
+     * @param e  error thrown by a mode
+     * @return   true if the next mode down should be used from now on
+     */
+    private static boolean isUnsupported(IOException e)
+    {
+        if (e instanceof AtomicMoveNotSupportedException) {
+            return true;
+        }
+
+        if (!(e instanceof FileSystemException) || e instanceof FileAlreadyExistsException
+                || e instanceof NoSuchFileException || e instanceof AccessDeniedException) {
+            return false;
+        }
+
+        // Reasons given by the operating system for links to another drive or file system that has none
+        String reason = ((FileSystemException) e).getReason();
+
+        if (reason == null) {
+            return false;
+        }
+
+        reason = reason.toLowerCase(Locale.ROOT);
+        return reason.contains("cross-device") || reason.contains("not supported")
+                || reason.contains("different disk drive") || reason.contains("incorrect function");
+    }
+
+    /**
+     * Copies a file with FileChannel.transferTo, which lets the operating
+     * system move the bytes without passing them through the JVM. The file
+     * is transferred a buffer at a time, and each piece is read back into
+     * the buffer to be hashed while it is still in the page cache, so the
+     * disk is only read once. The last modified time is kept, like
+     * FileUtils.copyFile does.
+     *
+     * @param source  file to copy
+     * @param target  path to create
+     * @return        number of bytes copied and their hash
+     * @throws IOException  if the copy failed, an {@link EOFException} if
+     *                      the source was cut short while it was copied
+     */
+    private static Result transferTo(Path source, Path target) throws IOException
+    {
+        ByteBuffer buffer = buffers.get();
+        ContentHash hash = new ContentHash();
+        FileChannel in = null;
+        FileChannel out = null;
+        boolean complete = false;
+        long size;
+
+        try {
+            in = FileChannel.open(source, StandardOpenOption.READ);
+            out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            size = in.size();
+            long position = 0;
+
+            // transferTo may copy less than asked for, and nothing once the source ends
+            while (position < size)
+            {
+                long copied = in.transferTo(position, Math.min(bufferSize, size - position), out);
+
+                if (copied <= 0) {
+                    throw new EOFException("Source shrank to " + position + " of " + size + " bytes: " + source);
+                }
+
+                // Hash the piece that was just copied
+                buffer.clear();
+                buffer.limit((int) copied);
+
+                while (buffer.hasRemaining()) {
+                    if (in.read(buffer, position + buffer.position()) < 0) {
+                        throw new EOFException("Source shrank while it was copied: " + source);
+                    }
+                }
+
+                buffer.flip();
+                hash.update(buffer);
+                position += copied;
+            }
+
+            complete = true;
+        } finally {
+            if (in != null) in.close();
+            if (out != null) out.close();
+
+            // Leave no partial copy behind
+            if (out != null && !complete) Files.deleteIfExists(target);
+        }
+
+        Files.setLastModifiedTime(target, Files.getLastModifiedTime(source));
+        return new Result(Mode.TRANSFER, size, hash.value());
+    }
+
+    /**
+     * Copies a file through a buffer in the JVM, hashing the bytes on the
+     * way. The last modified time is kept, like FileUtils.copyFile does.
+     *
+     * @param source  file to copy
+     * @param target  path to create
+     * @return        number of bytes copied and their hash
+     * @throws IOException  if the copy failed
+     */
+    private static Result copy(Path source, Path target) throws IOException
+    {
+        ByteBuffer buffer = buffers.get();
+        ContentHash hash = new ContentHash();
+        FileChannel in = null;
+        FileChannel out = null;
+        boolean complete = false;
+        long size = 0;
+
+        try {
+            in = FileChannel.open(source, StandardOpenOption.READ);
+            out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            buffer.clear();
+
+            while (in.read(buffer) != -1)
+            {
+                buffer.flip();
+                hash.update(buffer);
+
+                while (buffer.hasRemaining()) {
+                    size += out.write(buffer);
+                }
+
+                buffer.clear();
+            }
+
+            complete = true;
+        } finally {
+            if (in != null) in.close();
+            if (out != null) out.close();
+
+            // Leave no partial copy behind
+            if (out != null && !complete) Files.deleteIfExists(target);
+        }
+
+        Files.setLastModifiedTime(target, Files.getLastModifiedTime(source));
+        return new Result(Mode.COPY, size, hash.value());
+    }
+
+    /**
+     * Looks up the file store of a directory, remembering it for later.
+     *
+     * @param directory  directory to look up
+     * @return           file store holding the directory
+     * @throws IOException  if the file store cannot be read
+     */
+    private FileStore storeOf(Path directory) throws IOException
+    {
+        FileStore store = stores.get(directory);
+
+        if (store == null) {
+            store = Files.getFileStore(directory);
+            stores.put(directory, store);
+        }
+
+        return store;
+    }
+
+    /**
+     * Builds a summary of the files transferred in each mode along with
+     * their throughput.
+     *
+     * @return  one line per mode that was used
+     */
+    String report()
+    {
+        StringBuilder report = new StringBuilder();
+
+        for (Mode mode : Mode.values())
+        {
+            int index = mode.ordinal();
+
+            if (files.get(index) == 0) {
+                continue;
+            }
+
+            double seconds = nanos.get(index) / 1000000000.0;
+            double megabytes = bytes.get(index) / (1024.0 * 1024.0);
+
+            report.append(String.format(Locale.ROOT, "%s: %d files, %.1f MB in %.2f s (%.1f MB/s)\n",
+                    mode.name().toLowerCase(Locale.ROOT), files.get(index), megabytes, seconds,
+                    seconds > 0 ? megabytes / seconds : 0.0));
+        }
+
+        return report.toString();
+    }
+}
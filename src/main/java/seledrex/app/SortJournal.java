@@ -0,0 +1,258 @@
+package seledrex.app;
+
+//======================================================================================================================
+// Imports
+//======================================================================================================================
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+//======================================================================================================================
+// Sort Journal
+//======================================================================================================================
+
+/**
+ * Append-only record of the files a bulk sort has finished with, kept in
+ * the stash as sort.journal. Each line holds the size, the last modified
+ * time and the absolute path of an input file that is now in the stash:
+ *
+ * size  modified  path
+ *
+ * When a sort is interrupted, the next one reads the journal back and
+ * skips those files without parsing or looking them up again, as long as
+ * their size and modified time have not changed since. A file that was
+ * replaced under the same name in the meantime is sorted again. Files
+ * that were moved into the stash are not journaled, since they are no
+ * longer in the input folder to be skipped.
+ *
+ * Lines are buffered and flushed every so often, so a crash can lose the
+ * last few entries. Those files are simply checked again, and found to
+ * already be in the stash. When a sort completes, the journal is
+ * compacted: it is deleted if every file made it, otherwise it is
+ * rewritten with one line per finished file for the next attempt.
+ *
+ * @author Eric Auster
+ */
+class SortJournal
+{
+    //==================================================================================================================
+    // Properties
+    //==================================================================================================================
+
+    static final String filename = "sort.journal";
+    private static final int flushInterval = 256; // Entries written between flushes
+
+    private final File file; // Journal inside the stash
+    private final Map<String, Entry> done; // Files finished by earlier runs, by path
+    private Writer writer; // Appends to the journal
+    private int unflushed; // Entries written since the last flush
+    private int failures; // Files that could not be put in the stash this run
+
+    //==================================================================================================================
+    // Constructor
+    //==================================================================================================================
+
+    /**
+     * Opens the journal of a stash, reading in the entries left over from
+     * an interrupted sort.
+     *
+     * @param stash  stash folder
+     * @throws IOException  if the journal cannot be read or opened for writing
+     */
+    SortJournal(File stash) throws IOException
+    {
+        file = new File(stash, filename);
+        done = new HashMap<String, Entry>();
+
+        // Read in the entries of the last run
+        if (file.exists()) {
+            read(done);
+        }
+
+        writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+    }
+
+    //==================================================================================================================
+    // Methods
+    //==================================================================================================================
+
+    /**
+     * @return  number of files finished by earlier runs
+     */
+    int resumed() { return done.size(); }
+
+    /**
+     * Checks whether an earlier run already finished with a file, and the
+     * file has not changed since.
+     *
+     * @param file  input file
+     * @return      true if the file can be skipped
+     */
+    boolean isDone(Path file)
+    {
+        Entry entry = done.get(file.toAbsolutePath().toString());
+
+        if (entry == null) {
+            return false;
+        }
+
+        // Only skip the file if it is still the one that was sorted
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            return attributes.size() == entry.size && attributes.lastModifiedTime().toMillis() == entry.modified;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Records that a file is now in the stash, along with its size and
+     * modified time.
+     *
+     * @param file  input file
+     * @throws IOException  if the journal cannot be written
+     */
+    void record(Path file) throws IOException
+    {
+        BasicFileAttributes attributes;
+
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            // Moved into the stash, so it will not be read again
+            return;
+        }
+
+        String line = attributes.size() + "\t" + attributes.lastModifiedTime().toMillis() + "\t"
+                + file.toAbsolutePath() + "\n";
+
+        synchronized (this)
+        {
+            writer.write(line);
+
+            if (++unflushed == flushInterval) {
+                writer.flush();
+                unflushed = 0;
+            }
+        }
+    }
+
+    /**
+     * Records that a file could not be put in the stash, which keeps the
+     * journal around after the sort completes.
+     */
+    synchronized void fail()
+    {
+        failures++;
+    }
+
+    /**
+     * Flushes and closes the journal without compacting it, leaving it
+     * to be resumed by the next sort.
+     *
+     * @throws IOException  if the journal cannot be written
+     */
+    synchronized void close() throws IOException
+    {
+        writer.close();
+    }
+
+    /**
+     * Closes and compacts the journal once a sort has completed. The
+     * journal is deleted if nothing failed, otherwise it is rewritten
+     * with a single line for each finished file.
+     *
+     * @throws IOException  if the journal cannot be rewritten
+     */
+    synchronized void compact() throws IOException
+    {
+        writer.close();
+
+        if (failures == 0) {
+            if (!file.delete() && file.exists()) {
+                throw new IOException("Could not delete " + file.getAbsolutePath());
+            }
+            return;
+        }
+
+        // Write the latest entry of each file next to the journal, then swap them in
+        Map<String, Entry> finished = new LinkedHashMap<String, Entry>();
+        File compacted = new File(file.getParentFile(), filename + ".tmp");
+        Writer out = null;
+        read(finished);
+
+        try {
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(compacted), StandardCharsets.UTF_8));
+
+            for (Map.Entry<String, Entry> entry : finished.entrySet()) {
+                out.write(entry.getValue().size + "\t" + entry.getValue().modified + "\t" + entry.getKey() + "\n");
+            }
+        } finally {
+            if (out != null) out.close();
+        }
+
+        Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Reads every entry of the journal. Lines that cannot be parsed, such
+     * as a last line cut short by a crash, are left out, so those files
+     * are simply checked again.
+     *
+     * @param entries  map to add the entries to, by path
+     * @throws IOException  if the journal cannot be read
+     */
+    private void read(Map<String, Entry> entries) throws IOException
+    {
+        BufferedReader reader = null;
+
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+            String line;
+
+            while ((line = reader.readLine()) != null)
+            {
+                String[] fields = line.split("\t", 3);
+
+                if (fields.length < 3) {
+                    continue;
+                }
+
+                try {
+                    entries.put(fields[2], new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1])));
+                } catch (NumberFormatException e) {
+                    // Not an entry
+                }
+            }
+        } finally {
+            if (reader != null) reader.close();
+        }
+    }
+
+    //==================================================================================================================
+    // Entry
+    //==================================================================================================================
+
+    /**
+     * What a file looked like when it was put in the stash.
+     */
+    private static class Entry
+    {
+        final long size; // Size in bytes
+        final long modified; // Last modified time in milliseconds
+
+        Entry(long size, long modified)
+        {
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package seledrex.app;
+
+//======================================================================================================================
+// Imports
+//======================================================================================================================
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+//======================================================================================================================
+// Sort Manifest
+//======================================================================================================================
+
+/**
+ * Writes output.txt as files are sorted, instead of collecting every file
+ * first and writing them all out at the end. The manifest is tab
+ * separated with one line per file:
+ *
+ * artist  submission  filename  size  outcome
+ *
+ * The submission is the number at the start of the filename, or '-' for
+ * unsorted files. The size is in bytes, or '-' when the file was not
+ * transferred. The outcome is the transfer mode used (transfer, move,
+ * link or copy), 'exists' when the stash already had the file,
+ * 'duplicate' when the stash had the same contents under another name,
+ * or 'failed'. Lines go through a large buffer and are built by hand rather
+ * than with a format string. Multiple threads may write at once.
+ *
+ * @author Eric Auster
+ */
+class SortManifest
+{
+    //==================================================================================================================
+    // Properties
+    //==================================================================================================================
+
+    static final String filename = "output.txt";
+    static final String exists = "exists";
+    static final String duplicate = "duplicate";
+    static final String failed = "failed";
+    private static final int bufferSize = 64 * 1024;
+
+    private final Writer writer;
+
+    //==================================================================================================================
+    // Constructor
+    //==================================================================================================================
+
+    /**
+     * Creates the manifest inside the stash, replacing the last one.
+     *
+     * @param stash  stash folder
+     * @throws IOException  if the manifest cannot be created
+     */
+    SortManifest(File stash) throws IOException
+    {
+        writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(new File(stash, filename)), StandardCharsets.UTF_8), bufferSize);
+        writer.write("# artist\tsubmission\tfilename\tsize\toutcome\n");
+    }
+
+    //==================================================================================================================
+    // Methods
+    //==================================================================================================================
+
+    /**
+     * Writes a line for a sorted file.
+     *
+     * @param artist      artist directory the file was sorted into
+     * @param submission  submission number, or a negative number if unknown
+     * @param name        filename
+     * @param size        size in bytes, or a negative number if unknown
+     * @param outcome     what happened to the file
+     * @throws IOException  if the manifest cannot be written
+     */
+    void write(String artist, long submission, String name, long size, String outcome) throws IOException
+    {
+        StringBuilder line = new StringBuilder(artist.length() + name.length() + 48);
+        line.append(artist).append('\t');
+
+        if (submission < 0) line.append('-'); else line.append(submission);
+        line.append('\t').append(name).append('\t');
+        if (size < 0) line.append('-'); else line.append(size);
+        line.append('\t').append(outcome).append('\n');
+
+        synchronized (writer) {
+            writer.append(line);
+        }
+    }
+
+    /**
+     * Flushes and closes the manifest.
+     *
+     * @throws IOException  if the manifest cannot be written
+     */
+    void close() throws IOException
+    {
+        synchronized (writer) {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,576 @@
+package seledrex.app;
+
+//======================================================================================================================
+// Imports
+//======================================================================================================================
+
+import org.apache.commons.io.FilenameUtils;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import static org.apache.commons.lang.exception.ExceptionUtils.getStackTrace;
+
+//======================================================================================================================
+// Sort Run
+//======================================================================================================================
+
+/**
+ * A single run of the bulk sort over a fixed list of input folders.
+ * Everything a sort needs while it runs, from the journal and manifest
+ * to the fork/join and copy pools, lives here and is released when the
+ * run ends, so nothing carries over into the next sort. Every file is
+ * read from its folder, grouped and transferred exactly once, and the
+ * throughput of each folder is logged when it is done.
+ *
+ * @author Eric Auster
+ */
+class SortRun
+{
+    //==================================================================================================================
+    // Properties
+    //==================================================================================================================
+
+    private static final int chunkSize = 8192; // Files read from a folder before they are sorted
+    private static final int groupThreshold = 1024; // Files handled by a single fork/join leaf
+
+    private final ArtworkSorter sorter; // Sorter that owns the stash's caches
+    private final File outputFolder; // Stash folder
+    private final StashDirectoryCache directories; // Names inside the stash's directories
+    private final FileTransfer transfer; // Puts files into the stash
+    private final StashInventory inventory; // Totals of the stash's files
+    private final StashLayout layout; // Directory each submission goes in
+    private final int ioThreads; // Number of concurrent copies, 1 means sequential
+    private final App app;
+    private SortJournal journal; // Files finished by this and interrupted sorts
+    private SortManifest manifest; // Lists what happened to each file
+    private ForkJoinPool groupPool; // Groups chunks during a parallel sort
+    private ExecutorService copyPool; // Copies files during a parallel sort
+    private Semaphore pendingCopies; // Bounds the copies queued on the copy pool
+
+    //==================================================================================================================
+    // Constructor
+    //==================================================================================================================
+
+    /**
+     * Prepares a run of the bulk sort.
+     *
+     * @param sorter        sorter that owns the stash's caches
+     * @param outputFolder  stash folder
+     * @param directories   names inside the stash's directories
+     * @param ioThreads     maximum number of concurrent copies
+     * @param mode          transfer mode to always use, or null to pick one per file store
+     * @param app           application used for logging
+     */
+    SortRun(ArtworkSorter sorter, File outputFolder, StashDirectoryCache directories, int ioThreads,
+            FileTransfer.Mode mode, App app)
+    {
+        this.sorter = sorter;
+        this.outputFolder = outputFolder;
+        this.directories = directories;
+        this.transfer = new FileTransfer(mode);
+        this.inventory = sorter.getInventory();
+        this.layout = sorter.getLayout();
+        this.ioThreads = ioThreads;
+        this.app = app;
+    }
+
+    //==================================================================================================================
+    // Methods
+    //==================================================================================================================
+
+    /**
+     * Sorts every file of the given input folders into the stash.
+     *
+     * @param inputFolders  folders to sort
+     */
+    void run(List<File> inputFolders)
+    {
+        // Open the journal, resuming an interrupted sort if there is one
+        try {
+            journal = new SortJournal(outputFolder);
+        } catch (IOException e) {
+            app.appendToLog("Error opening " + SortJournal.filename + ":\n" + getStackTrace(e));
+            return;
+        }
+
+        if (journal.resumed() > 0) {
+            app.appendToLog("Resuming interrupted sort, skipping " + journal.resumed() + " finished files\n");
+        }
+
+        // Start a new manifest
+        try {
+            manifest = new SortManifest(outputFolder);
+        } catch (IOException e) {
+            app.appendToLog("Error writing " + SortManifest.filename + ":\n" + getStackTrace(e));
+        }
+
+        boolean completed = false;
+
+        // Start the fork/join and copy pools if more than one copy may run at once
+        if (ioThreads > 1) {
+            groupPool = new ForkJoinPool();
+            copyPool = Executors.newFixedThreadPool(ioThreads);
+            pendingCopies = new Semaphore(ioThreads * 4);
+        }
+
+        try {
+            boolean clean = true;
+
+            // Loops through each of the input folders, carrying on past one that fails
+            for (File inputFolder : inputFolders) {
+                if (!sortFolder(inputFolder)) {
+                    clean = false;
+                }
+            }
+
+            // The journal is only compacted if every folder was read to the end
+            completed = clean;
+        } finally {
+            if (copyPool != null) {
+                shutdownPools();
+            }
+
+            closeJournal(completed);
+            closeManifest();
+            sorter.flushContentIndex();
+            sorter.saveInventory();
+        }
+
+        // Report the throughput of each transfer mode used
+        app.appendToLog(transfer.report());
+    }
+
+    /**
+     * Streams the files of a single input folder into chunks and sorts
+     * each chunk as soon as it is full.
+     *
+     * @param inputFolder  folder to read
+     * @return             false if the folder could not be read to the end
+     */
+    private boolean sortFolder(File inputFolder)
+    {
+        DirectoryStream<Path> stream = null;
+        FolderStats stats = new FolderStats();
+
+        try {
+            stream = Files.newDirectoryStream(inputFolder.toPath());
+            List<Path> chunk = new ArrayList<Path>(chunkSize);
+
+            // Add each file inside of the input folder as it is read
+            for (Path path : stream)
+            {
+                // Skip files finished by an interrupted sort
+                if (journal.isDone(path)) {
+                    continue;
+                }
+
+                // Check if file extension is valid. Add file if valid, log error if not.
+                if (ArtworkSorter.formatIsValid(FilenameUtils.getExtension(path.getFileName().toString()))) {
+                    chunk.add(path);
+                }
+                else {
+                    app.appendToLog("Invalid file format for file '" + path.toAbsolutePath() + "'\n");
+                }
+
+                // Sort the chunk once it is full
+                if (chunk.size() == chunkSize) {
+                    sortChunk(chunk, stats);
+                    chunk = new ArrayList<Path>(chunkSize);
+                }
+            }
+
+            // Sort whatever is left over, and wait for the folder's copies
+            sortChunk(chunk, stats);
+            awaitCopies();
+            app.appendToLog(stats.report(inputFolder));
+            return true;
+
+        // Catch exceptions
+        } catch (Exception e) {
+            app.appendToLog("Error reading folder '" + inputFolder.getAbsolutePath() + "':\n" + getStackTrace(e));
+            return false;
+        } finally {
+            try {
+                if (stream != null) stream.close();
+            } catch (IOException e) {
+                app.appendToLog("Error reading folder '" + inputFolder.getAbsolutePath() + "':\n" + getStackTrace(e));
+            }
+        }
+    }
+
+    /**
+     * Groups a chunk of files by artist and copies them into the
+     * artist directories. When running in parallel, the chunk is
+     * grouped on the fork/join pool and the copies are queued on the
+     * copy pool, blocking once too many copies are waiting.
+     *
+     * @param chunk  files to sort
+     * @param stats  counters of the folder the files came from
+     */
+    private void sortChunk(List<Path> chunk, final FolderStats stats)
+    {
+        if (chunk.isEmpty()) {
+            return;
+        }
+
+        // Match and group the files
+        GroupTask task = new GroupTask(chunk, 0, chunk.size(), layout);
+        Map<String, List<Path>> grouped = groupPool != null ? groupPool.invoke(task) : task.compute();
+
+        // Loop through all the artist directories
+        for (Map.Entry<String, List<Path>> entry : grouped.entrySet())
+        {
+            final String directory = entry.getKey();
+
+            // List or create the directory before any worker needs it
+            directories.open(directory);
+
+            // Loop through all the files belonging in the directory
+            for (final Path file : entry.getValue())
+            {
+                if (copyPool == null) {
+                    copyToArtist(directory, file, stats);
+                    continue;
+                }
+
+                // Wait for room on the copy pool
+                pendingCopies.acquireUninterruptibly();
+
+                copyPool.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            copyToArtist(directory, file, stats);
+                        } finally {
+                            pendingCopies.release();
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Waits until every copy queued so far has finished, by taking all of
+     * the copy pool's permits and handing them back.
+     */
+    private void awaitCopies()
+    {
+        if (pendingCopies == null) {
+            return;
+        }
+
+        pendingCopies.acquireUninterruptibly(ioThreads * 4);
+        pendingCopies.release(ioThreads * 4);
+    }
+
+    /**
+     * Waits for the queued copies to finish and releases the pools
+     * used by a parallel sort.
+     */
+    private void shutdownPools()
+    {
+        groupPool.shutdown();
+        copyPool.shutdown();
+
+        // Wait for all the copies to finish
+        try {
+            while (!copyPool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS)) {
+                Thread.sleep(10);
+            }
+        } catch (InterruptedException e) {
+            copyPool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        groupPool = null;
+        copyPool = null;
+        pendingCopies = null;
+    }
+
+    /**
+     * Closes the journal at the end of a sort, compacting it if the sort
+     * ran to completion.
+     *
+     * @param completed  true if every input folder was sorted
+     */
+    private void closeJournal(boolean completed)
+    {
+        try {
+            if (completed) {
+                journal.compact();
+            } else {
+                journal.close();
+            }
+        } catch (IOException e) {
+            app.appendToLog("Error writing " + SortJournal.filename + ":\n" + getStackTrace(e));
+        }
+
+        journal = null;
+    }
+
+    /**
+     * Flushes and closes the manifest at the end of a sort.
+     */
+    private void closeManifest()
+    {
+        if (manifest == null) {
+            return;
+        }
+
+        try {
+            manifest.close();
+        } catch (IOException e) {
+            app.appendToLog("Error writing " + SortManifest.filename + ":\n" + getStackTrace(e));
+        }
+
+        manifest = null;
+    }
+
+    /**
+     * Transfers a file into its directory unless it already exists.
+     * The name is claimed from the directory cache first, so a name that
+     * is already there, or being put there by another worker or download,
+     * is skipped. Files whose contents are already in the stash are
+     * skipped as well. Unless files are being moved, this is checked after
+     * the transfer, using the hash taken while the bytes were copied, and
+     * the copy is deleted again if it turns out to be a duplicate.
+     *
+     * @param directory  directory of the artist the layout puts the file in
+     * @param file       file to copy
+     * @param stats      counters of the folder the file came from
+     */
+    private void copyToArtist(String directory, Path file, FolderStats stats)
+    {
+        String name = file.getFileName().toString();
+        String artist = StashLayout.artistOf(directory);
+        String relative = directory + "/" + name;
+        long size = -1;
+        boolean indexed = false; // Whether the file was added to the content index
+        stats.files.incrementAndGet();
+
+        // Claim the name so nothing else puts the same file there
+        if (!directories.claim(directory, name)) {
+            recordFinished(artist, file, -1, SortManifest.exists);
+            return;
+        }
+
+        inventory.expect(relative);
+
+        try {
+            size = Files.size(file);
+            Path target = new File(directories.open(directory), name).toPath();
+            boolean moving = transfer.getPreferred() == FileTransfer.Mode.MOVE;
+
+            // A moved file cannot be put back, so check for the same contents under another name first
+            if (moving)
+            {
+                String original = sorter.contentIndex().addUnlessDuplicate(relative, file, size);
+
+                if (original != null) {
+                    directories.release(directory, name);
+                    inventory.abandon(relative);
+                    app.appendToLog("Duplicate of " + original + ": " + name + "\n");
+                    recordFinished(artist, file, size, SortManifest.duplicate);
+                    return;
+                }
+
+                indexed = true;
+            }
+
+            FileTransfer.Result result = transfer.transfer(file, target);
+
+            // Otherwise check the file once it is in place, by the hash taken on the way if its bytes were read
+            if (!moving)
+            {
+                size = result.size;
+                String original = result.hashed
+                        ? sorter.contentIndex().addUnlessDuplicate(relative, size, result.hash)
+                        : sorter.contentIndex().addUnlessDuplicate(relative, target, size);
+
+                if (original != null) {
+                    Files.deleteIfExists(target);
+                    directories.release(directory, name);
+                    inventory.abandon(relative);
+                    app.appendToLog("Duplicate of " + original + ": " + name + "\n");
+                    recordFinished(artist, file, size, SortManifest.duplicate);
+                    return;
+                }
+
+                indexed = true;
+            }
+
+            FileTransfer.Mode mode = result.mode;
+            app.appendToLog((mode == FileTransfer.Mode.LINK ? "Linked: " :
+                    mode == FileTransfer.Mode.MOVE ? "Moved: " : "Copied: ") + name + "\n");
+            stats.added.incrementAndGet();
+            stats.bytes.addAndGet(result.size);
+            inventory.settle(relative, artist, result.size);
+            recordFinished(artist, file, result.size, mode.name().toLowerCase(Locale.ROOT));
+        } catch (FileAlreadyExistsException e) {
+            // Put there behind the cache's back, so the entry added for a move belongs to another file
+            sorter.forgetContent(relative, indexed ? size : -1);
+
+            // The claim keeps the watcher from counting the file, so count it here
+            inventory.settle(relative, artist, new File(directories.open(directory), name).length());
+            recordFinished(artist, file, -1, SortManifest.exists);
+        } catch (Exception e) {
+            directories.release(directory, name);
+            inventory.abandon(relative);
+
+            sorter.forgetContent(relative, indexed ? size : -1);
+
+            journal.fail();
+            app.appendToLog("Error copying files:\n" + getStackTrace(e));
+            recordOutcome(artist, name, -1, SortManifest.failed);
+        }
+    }
+
+    /**
+     * Writes a file that is now in the stash to the journal and manifest.
+     *
+     * @param artist   artist directory of the file
+     * @param file     input file
+     * @param size     size in bytes, or a negative number if unknown
+     * @param outcome  what happened to the file
+     */
+    private void recordFinished(String artist, Path file, long size, String outcome)
+    {
+        try {
+            journal.record(file);
+        } catch (IOException e) {
+            app.appendToLog("Error writing " + SortJournal.filename + ":\n" + getStackTrace(e));
+        }
+
+        recordOutcome(artist, file.getFileName().toString(), size, outcome);
+    }
+
+    /**
+     * Writes what happened to a file to the manifest.
+     *
+     * @param artist   artist directory of the file
+     * @param name     filename
+     * @param size     size in bytes, or a negative number if unknown
+     * @param outcome  what happened to the file
+     */
+    private void recordOutcome(String artist, String name, long size, String outcome)
+    {
+        if (manifest == null) {
+            return;
+        }
+
+        try {
+            manifest.write(artist, SubmissionName.parseId(name), name, size, outcome);
+        } catch (IOException e) {
+            app.appendToLog("Error writing " + SortManifest.filename + ":\n" + getStackTrace(e));
+        }
+    }
+
+    //==================================================================================================================
+    // GroupTask
+    //==================================================================================================================
+
+    /**
+     * Fork/join task that scans the names of a slice of the files and
+     * groups them by the directory the layout puts them in. Slices are
+     * split in half until they are small enough, and the halves are merged
+     * back in order so each directory keeps the same file order as the
+     * sequential sort.
+     */
+    private static class GroupTask extends RecursiveTask<Map<String, List<Path>>>
+    {
+        private final List<Path> files;
+        private final int from, to;
+        private final StashLayout layout;
+
+        GroupTask(List<Path> files, int from, int to, StashLayout layout)
+        {
+            this.files = files;
+            this.from = from;
+            this.to = to;
+            this.layout = layout;
+        }
+
+        @Override
+        protected Map<String, List<Path>> compute()
+        {
+            // Split the slice until it is small enough
+            if (to - from > groupThreshold)
+            {
+                int mid = (from + to) >>> 1;
+                GroupTask left = new GroupTask(files, from, mid, layout);
+                left.fork();
+                Map<String, List<Path>> right = new GroupTask(files, mid, to, layout).compute();
+                Map<String, List<Path>> merged = left.join();
+
+                // Right half goes after the left half
+                for (Map.Entry<String, List<Path>> entry : right.entrySet()) {
+                    if (merged.containsKey(entry.getKey())) {
+                        merged.get(entry.getKey()).addAll(entry.getValue());
+                    } else {
+                        merged.put(entry.getKey(), entry.getValue());
+                    }
+                }
+
+                return merged;
+            }
+
+            Map<String, List<Path>> gallery = new HashMap<String, List<Path>>();
+            SubmissionName parser = SubmissionName.forThread();
+
+            // Loop through each of the files in the slice
+            for (int i = from; i < to; i++)
+            {
+                Path file = files.get(i);
+
+                // Artist's directory if the name can be sorted, unsorted otherwise
+                String directory = parser.parse(file.getFileName().toString()) ?
+                        layout.directoryOf(parser) : StashLayout.unsorted;
+
+                if (!gallery.containsKey(directory)) {
+                    gallery.put(directory, new ArrayList<Path>());
+                }
+
+                gallery.get(directory).add(file);
+            }
+
+            return gallery;
+        }
+    }
+
+    //==================================================================================================================
+    // FolderStats
+    //==================================================================================================================
+
+    /**
+     * Counts the files of a single input folder as they are sorted. The
+     * counters are updated by the copy workers.
+     */
+    private static class FolderStats
+    {
+        final AtomicLong files = new AtomicLong(); // Files handed to the copy stage
+        final AtomicLong added = new AtomicLong(); // Files put in the stash
+        final AtomicLong bytes = new AtomicLong(); // Bytes put in the stash
+        final long start = System.nanoTime();
+
+        String report(File folder)
+        {
+            double seconds = (System.nanoTime() - start) / 1000000000.0;
+            double megabytes = bytes.get() / (1024.0 * 1024.0);
+
+            return String.format(Locale.ROOT, "Sorted '%s': %d files, %d added (%.1f MB) in %.2f s (%.0f files/s, %.1f MB/s)\n",
+                    folder.getAbsolutePath(), files.get(), added.get(), megabytes, seconds,
+                    seconds > 0 ? files.get() / seconds : 0.0, seconds > 0 ? megabytes / seconds : 0.0);
+        }
+    }
+}
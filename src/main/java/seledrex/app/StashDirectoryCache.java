@@ -0,0 +1,215 @@
+package seledrex.app;
+
+//======================================================================================================================
+// Imports
+//======================================================================================================================
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+//======================================================================================================================
+// Stash Directory Cache
+//======================================================================================================================
+
+/**
+ * Remembers the names of the files inside the stash's directories so
+ * that sorting does not have to ask the filesystem whether every single
+ * file exists. The first time a directory is needed it is created if
+ * missing and listed once, and from then on its names are kept in a
+ * set in memory.
+ *
+ * A file is only put into a directory after claiming its name here.
+ * Claiming adds the name to the set atomically, so when the bulk sort
+ * and concurrent downloads go for the same name, exactly one of them
+ * gets it and the others skip it, just as if the file already existed.
+ * Files added to or deleted from the stash by other programs while the
+ * application is running are passed on by the {@link StashWatcher}. Since
+ * every file the application puts in a directory is claimed here first,
+ * the names in a directory's set tell the watcher which of the files it
+ * finds came from the application itself.
+ *
+ * @author Eric Auster
+ */
+class StashDirectoryCache
+{
+    //==================================================================================================================
+    // Properties
+    //==================================================================================================================
+
+    private final File root; // Stash folder
+    private final ConcurrentMap<String, Set<String>> contents; // Names inside each directory
+    private final App app;
+
+    //==================================================================================================================
+    // Constructor
+    //==================================================================================================================
+
+    /**
+     * Creates an empty cache for a stash folder.
+     *
+     * @param root  stash folder
+     * @param app   application used for logging
+     */
+    StashDirectoryCache(File root, App app)
+    {
+        this.root = root;
+        this.contents = new ConcurrentHashMap<String, Set<String>>();
+        this.app = app;
+    }
+
+    //==================================================================================================================
+    // Methods
+    //==================================================================================================================
+
+    /**
+     * Opens a directory inside the stash, creating and listing it the
+     * first time it is asked for.
+     *
+     * @param directory  path of the directory relative to the stash
+     * @return           the directory
+     */
+    File open(String directory)
+    {
+        namesOf(directory);
+        return new File(root, directory);
+    }
+
+    /**
+     * Claims a name inside a directory. Only the first caller for a name
+     * gets the claim, and nobody gets it if the file was already there
+     * when the directory was listed.
+     *
+     * @param directory  path of the directory relative to the stash
+     * @param name       filename to claim
+     * @return           true if the caller may put the file there
+     */
+    boolean claim(String directory, String name)
+    {
+        return namesOf(directory).add(name);
+    }
+
+    /**
+     * Gives up a claim after the file could not be put in place.
+     *
+     * @param directory  path of the directory relative to the stash
+     * @param name       filename to release
+     */
+    void release(String directory, String name)
+    {
+        namesOf(directory).remove(name);
+    }
+
+    /**
+     * Adds the names found when a directory was listed again after it
+     * changed, and returns the ones that were not put there by the
+     * application. If the directory has not been listed yet, the
+     * application has not put anything there, so every name that was
+     * created is new to it. The directory is then left to be listed in
+     * full when it is first needed.
+     *
+     * @param directory  path of the directory relative to the stash
+     * @param names      filenames inside the directory
+     * @param created    names created since the directory was last listed,
+     *                   used if the directory has not been listed yet
+     * @return           names new to the application
+     */
+    List<String> added(String directory, String[] names, Set<String> created)
+    {
+        Set<String> cached = contents.get(directory);
+        List<String> added = new ArrayList<String>();
+
+        for (String name : names) {
+            if (cached != null ? cached.add(name) : created.contains(name)) {
+                added.add(name);
+            }
+        }
+
+        return added;
+    }
+
+    /**
+     * Checks if a directory has been listed, so its set knows about
+     * everything the application put there.
+     *
+     * @param directory  path of the directory relative to the stash
+     * @return           true if the directory's names are kept
+     */
+    boolean isListed(String directory) { return contents.containsKey(directory); }
+
+    /**
+     * Forgets a file or directory that was deleted from the stash. A
+     * deleted directory takes the listings of everything inside it along.
+     * A name the application released itself, such as a duplicate it
+     * deleted again, is no longer in the set.
+     *
+     * @param directory  path of the parent directory relative to the stash
+     * @param name       name of what was deleted
+     * @return           false if the directory was listed and the name was not in it
+     */
+    boolean removed(String directory, String name)
+    {
+        Set<String> cached = contents.get(directory);
+        boolean known = cached == null || cached.remove(name);
+
+        String path = directory.isEmpty() ? name : directory + "/" + name;
+        Iterator<String> paths = contents.keySet().iterator();
+
+        while (paths.hasNext())
+        {
+            String cachedPath = paths.next();
+
+            if (cachedPath.equals(path) || cachedPath.startsWith(path + "/")) {
+                paths.remove();
+            }
+        }
+
+        return known;
+    }
+
+    /**
+     * Returns the names inside a directory, creating and listing the
+     * directory if this is the first time it is used. If two threads list
+     * the same directory at once, only one of the listings is kept.
+     *
+     * @param directory  path of the directory relative to the stash
+     * @return           live set of names inside the directory
+     */
+    private Set<String> namesOf(String directory)
+    {
+        Set<String> names = contents.get(directory);
+
+        if (names != null) {
+            return names;
+        }
+
+        File dir = new File(root, directory);
+        Set<String> listed = ConcurrentHashMap.newKeySet();
+
+        // If the directory does not exist, create it
+        if (!dir.exists())
+        {
+            if (dir.mkdirs()) {
+                app.appendToLog("Made new directory: " + dir.getAbsolutePath() + "\n");
+            }
+        }
+        // Otherwise read in what it already holds
+        else
+        {
+            String[] existing = dir.list();
+
+            if (existing != null) {
+                for (String name : existing) {
+                    listed.add(name);
+                }
+            }
+        }
+
+        names = contents.putIfAbsent(directory, listed);
+        return names != null ? names : listed;
+    }
+}
@@ -0,0 +1,208 @@
+package seledrex.app;
+
+//======================================================================================================================
+// Imports
+//======================================================================================================================
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+//======================================================================================================================
+// Stash Filter
+//======================================================================================================================
+
+/**
+ * Bloom filter over the submission keys of the stash, kept in the stash as
+ * stash.bloom and memory-mapped, so it lives outside the Java heap and is
+ * there as soon as the stash is opened. The filter answers whether a
+ * submission might be in the stash. A no is always right, so most
+ * downloads of new submissions never touch the full {@link SubmissionSet}.
+ *
+ * The filter is blocked: all the bits of a key fall inside one 64 byte
+ * block, so a lookup reads a single cache line. With 10 bits per entry and
+ * 7 bits per key, about 1 in 100 misses gets through to the exact set.
+ * Keys are never taken out, so deleted files only make the filter a little
+ * less precise until it is rebuilt for a larger stash.
+ *
+ * @author Eric Auster
+ */
+class StashFilter
+{
+    //==================================================================================================================
+    // Properties
+    //==================================================================================================================
+
+    static final String filename = "stash.bloom";
+    private static final int magic = 0x53424631; // "SBF1"
+    private static final int headerSize = 64;
+    private static final int blockSize = 64; // Bytes per block, one cache line
+    private static final int bitsPerEntry = 10;
+    private static final int hashes = 7;
+    private static final int minBlocks = 1024;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer map;
+    private final int blockMask; // Number of blocks minus one
+    private final long capacity; // Entries the filter was sized for
+    private volatile int published; // Written after each add, so readers see the new bits
+
+    //==================================================================================================================
+    // Constructor
+    //==================================================================================================================
+
+    /**
+     * Maps a filter file.
+     *
+     * @param file      filter file, already of the right length
+     * @param blocks    number of blocks, a power of two
+     * @param capacity  entries the filter was sized for
+     * @throws IOException  if the file cannot be mapped
+     */
+    private StashFilter(RandomAccessFile file, int blocks, long capacity) throws IOException
+    {
+        this.file = file;
+        this.map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, headerSize + (long) blocks * blockSize);
+        this.blockMask = blocks - 1;
+        this.capacity = capacity;
+    }
+
+    //==================================================================================================================
+    // Methods
+    //==================================================================================================================
+
+    /**
+     * Opens the filter of a stash. The existing filter is kept if it was
+     * sized for at least the given number of entries. Otherwise a new, empty
+     * one twice that size is made in its place.
+     *
+     * @param stash    stash folder
+     * @param entries  number of files in the stash
+     * @return         the filter
+     * @throws IOException  if the filter cannot be read or written
+     */
+    static StashFilter open(File stash, long entries) throws IOException
+    {
+        RandomAccessFile file = new RandomAccessFile(new File(stash, filename), "rw");
+
+        try {
+            // Keep the filter from the last run if it is big enough
+            if (file.length() >= headerSize && file.readInt() == magic)
+            {
+                int blocks = file.readInt();
+                long capacity = file.readLong();
+
+                if (capacity >= entries && file.length() == headerSize + (long) blocks * blockSize) {
+                    return new StashFilter(file, blocks, capacity);
+                }
+            }
+
+            // Make a new filter
+            long capacity = Math.max(entries * 2, 1);
+            long bits = capacity * bitsPerEntry;
+            int blocks = minBlocks;
+
+            while ((long) blocks * blockSize * 8 < bits && blocks < (1 << 24)) {
+                blocks <<= 1;
+            }
+
+            file.setLength(0);
+            file.setLength(headerSize + (long) blocks * blockSize);
+            file.seek(0);
+            file.writeInt(magic);
+            file.writeInt(blocks);
+            file.writeLong(capacity);
+
+            return new StashFilter(file, blocks, capacity);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Checks if a key might be in the stash.
+     *
+     * @param key  submission key
+     * @return     false if the key is definitely not in the stash
+     */
+    boolean mightContain(long key)
+    {
+        @SuppressWarnings("unused")
+        int seen = published; // Pairs with the write in add, so bits set by other threads are seen
+        long hash = mix(key);
+        int block = headerSize + (int) (hash & blockMask) * blockSize;
+        long bits = mix(hash);
+
+        for (int i = 0; i < hashes; i++, bits >>>= 9)
+        {
+            int bit = (int) (bits & 511);
+
+            if ((map.get(block + (bit >>> 3)) & (1 << (bit & 7))) == 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Adds a key to the filter.
+     *
+     * @param key  submission key
+     */
+    synchronized void add(long key)
+    {
+        long hash = mix(key);
+        int block = headerSize + (int) (hash & blockMask) * blockSize;
+        long bits = mix(hash);
+
+        for (int i = 0; i < hashes; i++, bits >>>= 9)
+        {
+            int bit = (int) (bits & 511);
+            int index = block + (bit >>> 3);
+            map.put(index, (byte) (map.get(index) | (1 << (bit & 7))));
+        }
+
+        published++;
+    }
+
+    /**
+     * @return  number of entries the filter was sized for
+     */
+    long getCapacity() { return capacity; }
+
+    /**
+     * Writes the filter to disk and closes it.
+     */
+    synchronized void close()
+    {
+        map.force();
+
+        try {
+            file.close();
+        } catch (IOException e) {
+            // Mapped bits are written out regardless
+        }
+    }
+
+    //==================================================================================================================
+    // Helper Methods
+    //==================================================================================================================
+
+    /**
+     * Scrambles a key so that every bit of it affects every bit of the result.
+     */
+    private static long mix(long key)
+    {
+        key ^= key >>> 33;
+        key *= 0xFF51AFD7ED558CCDL;
+        key ^= key >>> 33;
+        key *= 0xC4CEB9FE1A85EC53L;
+        key ^= key >>> 33;
+
+        return key;
+    }
+}
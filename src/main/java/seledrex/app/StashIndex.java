@@ -0,0 +1,472 @@
+package seledrex.app;
+
+//======================================================================================================================
+// Imports
+//======================================================================================================================
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+//======================================================================================================================
+// Stash Index
+//======================================================================================================================
+
+/**
+ * Persistent listing of every directory in the stash, kept in the stash
+ * as stash.index. For each directory, the index holds its last modified
+ * time along with the names of the files and subdirectories inside it.
+ *
+ * A directory's modified time changes whenever an entry is added to it,
+ * removed from it or renamed inside it. So when the index is refreshed,
+ * a directory whose time is unchanged is taken from the index as is, and
+ * only directories that changed are listed again. Starting up then costs
+ * one lookup per directory instead of one per file. Directories modified
+ * shortly before the last refresh are always listed again, since some
+ * filesystems only keep modified times to the second or two.
+ *
+ * Every directory is independent of its siblings, so the refresh walks
+ * the tree on a fork/join pool, with one task per directory.
+ *
+ * @author Eric Auster
+ */
+class StashIndex
+{
+    //==================================================================================================================
+    // Properties
+    //==================================================================================================================
+
+    static final String filename = "stash.index";
+    private static final int version = 1;
+    private static final long timeResolution = 2000; // Coarsest modified time kept by a filesystem, in ms
+
+    private final File root; // Stash folder
+    private Map<String, Directory> directories; // Directories keyed by their path relative to the stash
+    private long refreshed; // When the index was last refreshed
+    private final Set<String> listed; // Directories listed by the last refresh
+
+    //==================================================================================================================
+    // Constructor
+    //==================================================================================================================
+
+    /**
+     * Creates an empty index for a stash.
+     *
+     * @param root  stash folder
+     */
+    StashIndex(File root)
+    {
+        this.root = root;
+        this.directories = new HashMap<String, Directory>();
+        this.listed = ConcurrentHashMap.newKeySet();
+    }
+
+    //==================================================================================================================
+    // Methods
+    //==================================================================================================================
+
+    /**
+     * Reads the index from the stash, if there is one.
+     *
+     * @throws IOException  if the index cannot be read
+     */
+    void load() throws IOException
+    {
+        File file = new File(root, filename);
+
+        if (!file.exists()) {
+            return;
+        }
+
+        DataInputStream in = null;
+
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+
+            // Indexes written by another version are rebuilt
+            if (in.readInt() != version) {
+                return;
+            }
+
+            long time = in.readLong();
+            int count = in.readInt();
+            Map<String, Directory> loaded = new HashMap<String, Directory>(count * 2);
+
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                loaded.put(path, readDirectory(in));
+            }
+
+            directories = loaded;
+            refreshed = time;
+        } finally {
+            if (in != null) in.close();
+        }
+    }
+
+    /**
+     * Writes the index to the stash, replacing the previous one.
+     *
+     * @throws IOException  if the index cannot be written
+     */
+    void save() throws IOException
+    {
+        File file = new File(root, filename);
+        File temp = new File(root, filename + ".tmp");
+        DataOutputStream out = null;
+
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024));
+            writeHeader(out, refreshed, directories.size());
+
+            for (Map.Entry<String, Directory> entry : directories.entrySet()) {
+                writeDirectory(out, entry.getKey(), entry.getValue());
+            }
+        } finally {
+            if (out != null) out.close();
+        }
+
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Replaces some directories in the index file of a stash without
+     * loading the rest of the index. The other directories are copied over
+     * one at a time. A directory missing from the index is simply listed
+     * again the next time the index is refreshed, so nothing is lost if
+     * there is no index yet.
+     *
+     * @param root     stash folder
+     * @param changed  new contents of each changed directory keyed by path, null for removed directories
+     * @throws IOException  if the index cannot be read or written
+     */
+    static void update(File root, Map<String, Directory> changed) throws IOException
+    {
+        File file = new File(root, filename);
+        File temp = new File(root, filename + ".tmp");
+        Map<String, Directory> remaining = new HashMap<String, Directory>(changed);
+        DataInputStream in = null;
+        DataOutputStream out = null;
+        boolean copied = false;
+        int count = 0;
+
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024));
+
+            // Copy over the directories that did not change
+            if (file.exists())
+            {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+
+                if (in.readInt() == version)
+                {
+                    writeHeader(out, in.readLong(), 0);
+                    int total = in.readInt();
+                    copied = true;
+
+                    for (int i = 0; i < total; i++)
+                    {
+                        String path = in.readUTF();
+                        Directory directory = readDirectory(in);
+
+                        if (remaining.containsKey(path)) {
+                            directory = remaining.remove(path);
+                        }
+
+                        if (directory != null) {
+                            writeDirectory(out, path, directory);
+                            count++;
+                        }
+                    }
+                }
+            }
+
+            // Start a new index if there was none to copy
+            if (!copied) {
+                writeHeader(out, 0, 0);
+            }
+
+            // Then add the directories that are new to the index
+            for (Map.Entry<String, Directory> entry : remaining.entrySet()) {
+                if (entry.getValue() != null) {
+                    writeDirectory(out, entry.getKey(), entry.getValue());
+                    count++;
+                }
+            }
+        } finally {
+            if (in != null) in.close();
+            if (out != null) out.close();
+        }
+
+        // Fill in the number of directories now that it is known
+        RandomAccessFile header = new RandomAccessFile(temp, "rw");
+
+        try {
+            header.seek(12);
+            header.writeInt(count);
+        } finally {
+            header.close();
+        }
+
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Brings the index up to date with the stash, listing only the
+     * directories that changed since the last refresh.
+     *
+     * @param threads  number of directories to read at once, 1 walks the stash on this thread
+     */
+    void refresh(int threads)
+    {
+        Map<String, Directory> previous = directories;
+        long start = System.currentTimeMillis();
+        ScanTask scan = new ScanTask("", root, previous, refreshed - timeResolution);
+
+        directories = new ConcurrentHashMap<String, Directory>(Math.max(16, previous.size() * 2));
+        listed.clear();
+
+        // Walk the stash on the calling thread
+        if (threads <= 1) {
+            scan.compute();
+        }
+        // Walk the stash on a work-stealing pool
+        else {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+
+            try {
+                pool.invoke(scan);
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        refreshed = start;
+    }
+
+    /**
+     * Lists a directory, splitting its entries into files and subdirectories.
+     *
+     * @param dir       directory to list
+     * @param modified  last modified time of the directory
+     * @return          directory entry for the index
+     */
+    static Directory list(File dir, long modified)
+    {
+        File[] entries = dir.listFiles();
+        List<String> files = new ArrayList<String>();
+        List<String> subdirectories = new ArrayList<String>();
+
+        if (entries != null) {
+            for (File entry : entries) {
+                if (entry.isDirectory()) {
+                    subdirectories.add(entry.getName());
+                } else if (entry.isFile()) {
+                    files.add(entry.getName());
+                }
+            }
+        }
+
+        return new Directory(modified, files.toArray(new String[files.size()]),
+                subdirectories.toArray(new String[subdirectories.size()]));
+    }
+
+    /**
+     * @return  paths of every directory in the index, relative to the stash
+     */
+    Set<String> directoryPaths() { return directories.keySet(); }
+
+    /**
+     * Adds the name of every file in the stash to a registry.
+     *
+     * @param names  registry to add to
+     */
+    void collectFiles(StashRegistry names)
+    {
+        for (Directory directory : directories.values()) {
+            names.addAll(directory.files);
+        }
+    }
+
+    /**
+     * @return  number of files in the index
+     */
+    long fileCount()
+    {
+        long count = 0;
+
+        for (Directory directory : directories.values()) {
+            count += directory.files.length;
+        }
+
+        return count;
+    }
+
+    /**
+     * @return  number of directories in the index
+     */
+    int directoryCount() { return directories.size(); }
+
+    /**
+     * @return  number of directories listed by the last refresh
+     */
+    int listedCount() { return listed.size(); }
+
+    /**
+     * @return  paths of the directories listed by the last refresh
+     */
+    Set<String> listedPaths() { return listed; }
+
+    /**
+     * @return  every directory in the index keyed by its path relative to the stash
+     */
+    Map<String, Directory> getDirectories() { return Collections.unmodifiableMap(directories); }
+
+    //==================================================================================================================
+    // Helper Methods
+    //==================================================================================================================
+
+    /**
+     * Writes the start of an index file.
+     */
+    private static void writeHeader(DataOutputStream out, long refreshed, int count) throws IOException
+    {
+        out.writeInt(version);
+        out.writeLong(refreshed);
+        out.writeInt(count);
+    }
+
+    /**
+     * Reads a directory entry, after its path.
+     */
+    private static Directory readDirectory(DataInputStream in) throws IOException
+    {
+        long modified = in.readLong();
+        String[] files = new String[in.readInt()];
+
+        for (int i = 0; i < files.length; i++) {
+            files[i] = in.readUTF();
+        }
+
+        String[] subdirectories = new String[in.readInt()];
+
+        for (int i = 0; i < subdirectories.length; i++) {
+            subdirectories[i] = in.readUTF();
+        }
+
+        return new Directory(modified, files, subdirectories);
+    }
+
+    /**
+     * Writes a directory entry along with its path.
+     */
+    private static void writeDirectory(DataOutputStream out, String path, Directory directory) throws IOException
+    {
+        out.writeUTF(path);
+        out.writeLong(directory.modified);
+        out.writeInt(directory.files.length);
+
+        for (String name : directory.files) {
+            out.writeUTF(name);
+        }
+
+        out.writeInt(directory.subdirectories.length);
+
+        for (String name : directory.subdirectories) {
+            out.writeUTF(name);
+        }
+    }
+
+    //==================================================================================================================
+    // Scan Task
+    //==================================================================================================================
+
+    /**
+     * Refreshes a directory, then refreshes its subdirectories in parallel.
+     */
+    private class ScanTask extends RecursiveAction
+    {
+        private final String path; // Path of the directory relative to the stash
+        private final File dir;
+        private final Map<String, Directory> previous; // Directories as they were before the refresh
+        private final long unsure; // Directories modified after this are always listed
+
+        ScanTask(String path, File dir, Map<String, Directory> previous, long unsure)
+        {
+            this.path = path;
+            this.dir = dir;
+            this.previous = previous;
+            this.unsure = unsure;
+        }
+
+        @Override
+        protected void compute()
+        {
+            long modified = dir.lastModified();
+
+            // Directory is gone
+            if (modified == 0) {
+                return;
+            }
+
+            Directory directory = previous.get(path);
+
+            // List the directory again only if it changed
+            if (directory == null || directory.modified != modified || modified >= unsure) {
+                directory = list(dir, modified);
+                listed.add(path);
+            }
+
+            directories.put(path, directory);
+
+            if (directory.subdirectories.length == 0) {
+                return;
+            }
+
+            List<ScanTask> tasks = new ArrayList<ScanTask>(directory.subdirectories.length);
+
+            for (String name : directory.subdirectories) {
+                tasks.add(new ScanTask(path.isEmpty() ? name : path + "/" + name, new File(dir, name), previous, unsure));
+            }
+
+            // Sequential walk, one subdirectory after another
+            if (!inForkJoinPool()) {
+                for (ScanTask task : tasks) {
+                    task.compute();
+                }
+            } else {
+                invokeAll(tasks);
+            }
+        }
+    }
+
+    //==================================================================================================================
+    // Directory
+    //==================================================================================================================
+
+    /**
+     * Contents of a single directory as of its last modified time.
+     */
+    static class Directory
+    {
+        final long modified;
+        final String[] files;
+        final String[] subdirectories;
+
+        Directory(long modified, String[] files, String[] subdirectories)
+        {
+            this.modified = modified;
+            this.files = files;
+            this.subdirectories = subdirectories;
+        }
+    }
+}
@@ -0,0 +1,627 @@
+package seledrex.app;
+
+//======================================================================================================================
+// Imports
+//======================================================================================================================
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+//======================================================================================================================
+// Stash Inventory
+//======================================================================================================================
+
+/**
+ * Running totals of what is in the stash, kept per artist: number of files,
+ * bytes, oldest and newest submission number, and number of files of each
+ * extension. Every file put in the stash by a download or a sort is added
+ * as it goes, so the totals can be read at any time without walking the
+ * stash. Totals for the whole stash are kept as well.
+ *
+ * The inventory is saved in the stash as inventory.tsv, one line per
+ * artist, which can also be opened in a spreadsheet:
+ *
+ * artist  files  bytes  oldest  newest  extensions
+ *
+ * The extensions column lists 'extension:count' pairs separated by commas.
+ * The first time a stash is used, the inventory is seeded from the stash
+ * index. After that, the artists whose directories the stash index had to
+ * list again at startup are counted again. While the application runs,
+ * files that other programs put in the stash are added one at a time as
+ * the {@link StashWatcher} finds them, and an artist is only counted again
+ * from disk when one of its files is deleted.
+ *
+ * Files the application is putting in the stash itself are announced with
+ * {@link #expect} before they land and counted with {@link #settle}. A
+ * recount skips the files still expected, and holds the same lock as
+ * counting a file, so no file is counted twice or lost. The totals of the
+ * whole stash are only ever changed by the difference a count makes.
+ *
+ * While the inventory holds counts that were not saved yet, an empty
+ * inventory.dirty file is kept next to it. If the application stops
+ * without saving, the marker is still there at the next startup, and the
+ * inventory is seeded again instead of loading totals that are missing
+ * that session's files.
+ *
+ * @author Eric Auster
+ */
+class StashInventory
+{
+    //==================================================================================================================
+    // Properties
+    //==================================================================================================================
+
+    static final String filename = "inventory.tsv";
+    static final String dirtyFilename = "inventory.dirty";
+    private static final String header = "# artist\tfiles\tbytes\toldest\tnewest\textensions\n";
+
+    private final File file; // Inventory inside the stash
+    private final File marker; // Exists while there are counts that were not saved
+    private final ConcurrentMap<String, Artist> artists;
+    private final AtomicLong files; // Files in the whole stash
+    private final AtomicLong bytes; // Bytes in the whole stash
+    private final Set<String> pending; // Paths relative to the stash that the application is still putting there
+    private volatile boolean seeded; // Whether the totals cover the files already in the stash
+    private volatile boolean dirty; // Whether there are counts that were not saved
+
+    //==================================================================================================================
+    // Constructor
+    //==================================================================================================================
+
+    /**
+     * Creates an empty inventory for a stash.
+     *
+     * @param stash  stash folder
+     */
+    StashInventory(File stash)
+    {
+        this.file = new File(stash, filename);
+        this.marker = new File(stash, dirtyFilename);
+        this.artists = new ConcurrentHashMap<String, Artist>();
+        this.files = new AtomicLong();
+        this.bytes = new AtomicLong();
+        this.pending = new HashSet<String>();
+    }
+
+    //==================================================================================================================
+    // Methods
+    //==================================================================================================================
+
+    /**
+     * Counts a file that is in the stash.
+     *
+     * @param artist  artist directory of the file
+     * @param name    filename
+     * @param size    size in bytes
+     */
+    synchronized void add(String artist, String name, long size)
+    {
+        Artist totals = artists.get(artist);
+
+        if (totals == null) {
+            totals = new Artist();
+            artists.put(artist, totals);
+        }
+
+        count(totals, name, size);
+        files.incrementAndGet();
+        bytes.addAndGet(Math.max(0, size));
+        markDirty();
+    }
+
+    /**
+     * Announces a file the application is about to put in the stash, so a
+     * recount leaves it to {@link #settle}.
+     *
+     * @param relative  path of the file relative to the stash
+     */
+    synchronized void expect(String relative) { pending.add(relative); }
+
+    /**
+     * Takes back an announced file that did not make it into the stash.
+     *
+     * @param relative  path of the file relative to the stash
+     */
+    synchronized void abandon(String relative) { pending.remove(relative); }
+
+    /**
+     * Counts an announced file that is now in the stash.
+     *
+     * @param relative  path of the file relative to the stash
+     * @param artist    artist directory of the file
+     * @param size      size in bytes
+     */
+    synchronized void settle(String relative, String artist, long size)
+    {
+        pending.remove(relative);
+        add(artist, relative.substring(relative.lastIndexOf('/') + 1), size);
+    }
+
+    /**
+     * Counts the files of an artist again from disk, replacing its totals.
+     * Used when files of the artist were deleted by other programs, since
+     * the size of a deleted file can no longer be read. Files the
+     * application is still putting there are left out, as they are counted
+     * when they are settled. Nothing is counted until the inventory has
+     * been loaded or seeded.
+     *
+     * @param stash   stash folder
+     * @param artist  artist directory, whose buckets are counted as well
+     */
+    synchronized void recount(File stash, String artist)
+    {
+        if (!seeded) {
+            return;
+        }
+
+        Artist totals = new Artist();
+        countTree(new File(stash, artist), artist, totals);
+        replace(artist, totals);
+        markDirty();
+    }
+
+    /**
+     * Counts the artists again whose directories were listed by the last
+     * refresh of the stash index, since they changed while the application
+     * was not running. Artists whose directories are gone are dropped.
+     *
+     * @param stash  stash folder
+     * @param index  refreshed index of the stash's directories
+     * @param sizes  submission index of the stash to take sizes from, or null
+     * @return       number of artists counted again
+     */
+    int reconcile(File stash, StashIndex index, SubmissionIndex sizes)
+    {
+        Map<String, Artist> recounted = new HashMap<String, Artist>();
+        Map<String, StashIndex.Directory> directories = index.getDirectories();
+
+        // Artists that have a directory which changed
+        for (String path : index.listedPaths()) {
+            if (!path.isEmpty() && !path.equals("download") && !path.startsWith("download/")) {
+                recounted.put(StashLayout.artistOf(path), new Artist());
+            }
+        }
+
+        // Count every directory of those artists, buckets included
+        for (Map.Entry<String, StashIndex.Directory> entry : directories.entrySet())
+        {
+            String path = entry.getKey();
+            Artist totals = path.isEmpty() ? null : recounted.get(StashLayout.artistOf(path));
+
+            if (totals == null) {
+                continue;
+            }
+
+            File dir = new File(stash, path);
+
+            for (String name : entry.getValue().files) {
+                count(totals, name, sizeOf(dir, name, sizes));
+            }
+        }
+
+        // Artists whose directories were deleted
+        Set<String> gone = new HashSet<String>();
+
+        for (String artist : artists.keySet()) {
+            if (!directories.containsKey(artist)) {
+                gone.add(artist);
+            }
+        }
+
+        for (String artist : gone) {
+            recounted.put(artist, new Artist());
+        }
+
+        if (recounted.isEmpty()) {
+            return 0;
+        }
+
+        synchronized (this)
+        {
+            for (Map.Entry<String, Artist> entry : recounted.entrySet()) {
+                replace(entry.getKey(), entry.getValue());
+            }
+
+            markDirty();
+        }
+
+        return recounted.size();
+    }
+
+    /**
+     * Looks up the totals of an artist.
+     *
+     * @param artist  artist name
+     * @return        copy of the artist's totals, or null if the stash has nothing from the artist
+     */
+    Artist get(String artist)
+    {
+        Artist totals = artists.get(artist);
+        return totals == null ? null : totals.copy();
+    }
+
+    /**
+     * @return  number of files in the stash
+     */
+    long getFiles() { return files.get(); }
+
+    /**
+     * @return  number of bytes in the stash
+     */
+    long getBytes() { return bytes.get(); }
+
+    /**
+     * @return  number of artists in the stash
+     */
+    int getArtistCount() { return artists.size(); }
+
+    /**
+     * @return  true if the totals cover the files that were in the stash before it was opened
+     */
+    boolean isSeeded() { return seeded; }
+
+    /**
+     * Counts the files of a stash that has no inventory yet. The sizes are
+     * taken from the submission index, or read from disk for files it does
+     * not have. Files added while seeding are counted once, as long as they
+     * were not in the stash index yet.
+     *
+     * @param stash  stash folder
+     * @param index  refreshed index of the stash's directories
+     * @param sizes  submission index of the stash, or null if there is none
+     */
+    void seed(File stash, StashIndex index, SubmissionIndex sizes)
+    {
+        for (Map.Entry<String, StashIndex.Directory> entry : index.getDirectories().entrySet())
+        {
+            String path = entry.getKey();
+
+            // Files directly inside the stash and downloads in progress are not artwork
+            if (path.isEmpty() || path.equals("download") || path.startsWith("download/")) {
+                continue;
+            }
+
+            File dir = new File(stash, path);
+            String artist = path.indexOf('/') < 0 ? path : path.substring(0, path.indexOf('/'));
+
+            for (String name : entry.getValue().files) {
+                add(artist, name, sizeOf(dir, name, sizes));
+            }
+        }
+
+        seeded = true;
+    }
+
+    /**
+     * Writes the inventory to the stash. Nothing is written until the
+     * inventory has been loaded or seeded, since partial totals would be
+     * taken for the whole stash the next time.
+     *
+     * @throws IOException  if the inventory cannot be written
+     */
+    void save() throws IOException
+    {
+        if (!seeded) {
+            return;
+        }
+
+        // Counts made from here on are not in the file, so they set the flag again
+        synchronized (this) {
+            dirty = false;
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        Writer out = null;
+        boolean saved = false;
+
+        try {
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8));
+            export(out);
+            out.close();
+            out = null;
+
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            saved = true;
+        } finally {
+            if (out != null) out.close();
+
+            synchronized (this)
+            {
+                // Remove the marker unless something was counted while saving
+                if (!saved) {
+                    dirty = true;
+                } else if (!dirty) {
+                    Files.deleteIfExists(marker.toPath());
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the inventory, sorted by artist.
+     *
+     * @param out  where to write the inventory
+     * @throws IOException  if the inventory cannot be written
+     */
+    void export(Writer out) throws IOException
+    {
+        out.write(header);
+
+        for (Map.Entry<String, Artist> entry : new TreeMap<String, Artist>(artists).entrySet())
+        {
+            Artist totals = entry.getValue().copy();
+            StringBuilder line = new StringBuilder(entry.getKey().length() + 64);
+            line.append(entry.getKey()).append('\t').append(totals.files).append('\t').append(totals.bytes);
+            line.append('\t').append(totals.oldest).append('\t').append(totals.newest).append('\t');
+
+            boolean first = true;
+
+            for (Map.Entry<String, int[]> extension : totals.extensions.entrySet()) {
+                if (!first) line.append(',');
+                line.append(extension.getKey()).append(':').append(extension.getValue()[0]);
+                first = false;
+            }
+
+            out.write(line.append('\n').toString());
+        }
+    }
+
+    /**
+     * Reads the inventory saved in the stash, if there is one. Nothing is
+     * counted unless the whole inventory could be read.
+     *
+     * @throws IOException  if the inventory cannot be read
+     */
+    void load() throws IOException
+    {
+        if (!file.exists()) {
+            return;
+        }
+
+        // The last session stopped without saving its counts, so the stash is counted again
+        if (marker.exists()) {
+            return;
+        }
+
+        Map<String, Artist> loaded = new TreeMap<String, Artist>();
+        BufferedReader reader = null;
+
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+            String line;
+
+            while ((line = reader.readLine()) != null)
+            {
+                String[] parts = line.split("\t", -1);
+
+                // Skip the header and damaged lines
+                if (line.startsWith("#") || parts.length < 6) {
+                    continue;
+                }
+
+                try {
+                    Artist totals = new Artist();
+                    totals.files = Long.parseLong(parts[1]);
+                    totals.bytes = Long.parseLong(parts[2]);
+                    totals.oldest = Long.parseLong(parts[3]);
+                    totals.newest = Long.parseLong(parts[4]);
+
+                    for (String pair : parts[5].split(",")) {
+                        int colon = pair.lastIndexOf(':');
+                        if (colon > 0) {
+                            totals.extensions.put(pair.substring(0, colon),
+                                    new int[] {Integer.parseInt(pair.substring(colon + 1))});
+                        }
+                    }
+
+                    loaded.put(parts[0], totals);
+                } catch (NumberFormatException e) {
+                    // Damaged line
+                }
+            }
+        } finally {
+            if (reader != null) reader.close();
+        }
+
+        for (Map.Entry<String, Artist> entry : loaded.entrySet()) {
+            artists.put(entry.getKey(), entry.getValue());
+            files.addAndGet(entry.getValue().files);
+            bytes.addAndGet(entry.getValue().bytes);
+        }
+
+        seeded = true;
+    }
+
+    //==================================================================================================================
+    // Helper Methods
+    //==================================================================================================================
+
+    /**
+     * Adds a file to an artist's totals.
+     */
+    private static void count(Artist totals, String name, long size)
+    {
+        SubmissionName parser = SubmissionName.forThread();
+        long id = -1;
+        String extension;
+
+        if (parser.parse(name)) {
+            id = parser.getId();
+            extension = name.substring(parser.getExtensionStart());
+        } else {
+            extension = name.substring(name.lastIndexOf('.') + 1);
+        }
+
+        totals.add(id, extension.toLowerCase(Locale.ROOT), size);
+    }
+
+    /**
+     * Looks up the size of a file in the submission index, falling back to
+     * the file itself if the index does not have it.
+     */
+    private static long sizeOf(File dir, String name, SubmissionIndex sizes)
+    {
+        SubmissionName parser = SubmissionName.forThread();
+
+        if (sizes != null && parser.parse(name))
+        {
+            long size = sizes.sizeOf(parser.getId(), parser.getArtist());
+
+            if (size >= 0) {
+                return size;
+            }
+        }
+
+        return new File(dir, name).length();
+    }
+
+    /**
+     * Adds every file inside a directory and the directories below it to
+     * an artist's totals, apart from the files still expected. Must hold
+     * the lock.
+     *
+     * @param dir       directory to count
+     * @param relative  path of the directory relative to the stash
+     * @param totals    totals to add to
+     */
+    private void countTree(File dir, String relative, Artist totals)
+    {
+        File[] entries = dir.listFiles();
+
+        if (entries == null) {
+            return;
+        }
+
+        for (File entry : entries)
+        {
+            String path = relative + "/" + entry.getName();
+
+            if (entry.isDirectory()) {
+                countTree(entry, path, totals);
+            } else if (entry.isFile() && !pending.contains(path)) {
+                count(totals, entry.getName(), entry.length());
+            }
+        }
+    }
+
+    /**
+     * Puts in the new totals of an artist, dropping the artist if it has no
+     * files left, and changes the totals of the whole stash by the
+     * difference. Must hold the lock.
+     */
+    private void replace(String artist, Artist totals)
+    {
+        Artist old = totals.files == 0 ? artists.remove(artist) : artists.put(artist, totals);
+
+        if (old != null) {
+            old = old.copy();
+            files.addAndGet(totals.files - old.files);
+            bytes.addAndGet(totals.bytes - old.bytes);
+        } else {
+            files.addAndGet(totals.files);
+            bytes.addAndGet(totals.bytes);
+        }
+    }
+
+    /**
+     * Leaves the marker in the stash the first time something is counted
+     * after the inventory was loaded, seeded or saved.
+     */
+    private void markDirty()
+    {
+        if (dirty || !seeded) {
+            return;
+        }
+
+        synchronized (this)
+        {
+            if (dirty) {
+                return;
+            }
+
+            dirty = true;
+
+            try {
+                Files.write(marker.toPath(), new byte[0]);
+            } catch (IOException e) {
+                // Without the marker, only a crash before the next save loses counts
+            }
+        }
+    }
+
+    //==================================================================================================================
+    // Artist
+    //==================================================================================================================
+
+    /**
+     * Totals of a single artist.
+     */
+    static class Artist
+    {
+        long files;
+        long bytes;
+        long oldest = -1; // Oldest submission number, -1 if none
+        long newest = -1; // Newest submission number, -1 if none
+        final Map<String, int[]> extensions = new TreeMap<String, int[]>(); // Count for each extension
+
+        synchronized void add(long id, String extension, long size)
+        {
+            files++;
+            bytes += Math.max(0, size);
+
+            if (id >= 0) {
+                oldest = oldest < 0 ? id : Math.min(oldest, id);
+                newest = Math.max(newest, id);
+            }
+
+            int[] counter = extensions.get(extension);
+
+            if (counter == null) {
+                extensions.put(extension, new int[] {1});
+            } else {
+                counter[0]++;
+            }
+        }
+
+        synchronized Artist copy()
+        {
+            Artist copy = new Artist();
+            copy.files = files;
+            copy.bytes = bytes;
+            copy.oldest = oldest;
+            copy.newest = newest;
+
+            for (Map.Entry<String, int[]> entry : extensions.entrySet()) {
+                copy.extensions.put(entry.getKey(), new int[] {entry.getValue()[0]});
+            }
+
+            return copy;
+        }
+
+        long getFiles() { return files; }
+        long getBytes() { return bytes; }
+        long getOldest() { return oldest; }
+        long getNewest() { return newest; }
+
+        /**
+         * @param extension  lower case extension
+         * @return           number of files with the extension
+         */
+        int getCount(String extension)
+        {
+            int[] counter = extensions.get(extension);
+            return counter == null ? 0 : counter[0];
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package seledrex.app;
+
+//======================================================================================================================
+// Imports
+//======================================================================================================================
+
+import java.time.LocalDate;
+import java.util.Locale;
+
+//======================================================================================================================
+// Stash Layout
+//======================================================================================================================
+
+/**
+ * Decides which directory of the stash a submission goes in. By default
+ * every file of an artist goes straight into the artist's directory. For
+ * artists with tens of thousands of files, the files can instead be spread
+ * over buckets inside the artist's directory:
+ *
+ * flat   stash/artist/file
+ * range  stash/artist/1490000000/file, one bucket per range of submission numbers
+ * month  stash/artist/2017-05/file, by the month in the submission number
+ *
+ * The submission number at the start of an FA filename is the time of the
+ * upload in seconds, which is where the month comes from. Changing the
+ * layout does not move files already in the stash. Lookups by filename do
+ * not depend on the layout, and files sorted again under a new layout are
+ * recognized by their contents.
+ *
+ * @author Eric Auster
+ */
+final class StashLayout
+{
+    //==================================================================================================================
+    // Properties
+    //==================================================================================================================
+
+    static final String unsorted = "unsorted";
+    static final long defaultRange = 10000000; // About four months of submissions
+    private static final long lastSecond = 253402300799L; // End of the year 9999
+
+    enum Kind { FLAT, RANGE, MONTH }
+
+    private final Kind kind;
+    private final long range; // Width of a bucket for the range layout
+
+    //==================================================================================================================
+    // Constructor
+    //==================================================================================================================
+
+    /**
+     * Creates a layout.
+     *
+     * @param kind   how to spread the files
+     * @param range  width of a bucket for the range layout
+     */
+    StashLayout(Kind kind, long range)
+    {
+        this.kind = kind;
+        this.range = Math.max(1, range);
+    }
+
+    //==================================================================================================================
+    // Methods
+    //==================================================================================================================
+
+    /**
+     * Reads a layout from the user's properties.
+     *
+     * @param name   'flat', 'range' or 'month', anything else is flat
+     * @param range  width of a bucket for the range layout
+     * @return       the layout
+     */
+    static StashLayout parse(String name, long range)
+    {
+        if (name != null)
+        {
+            try {
+                return new StashLayout(Kind.valueOf(name.trim().toUpperCase(Locale.ROOT)), range);
+            } catch (IllegalArgumentException e) {
+                // Fall through to the default
+            }
+        }
+
+        return new StashLayout(Kind.FLAT, range);
+    }
+
+    /**
+     * Returns the directory of a submission, relative to the stash.
+     *
+     * @param parsed  filename that was just parsed successfully
+     * @return        directory the file belongs in
+     */
+    String directoryOf(SubmissionName parsed)
+    {
+        String artist = parsed.getArtist();
+        long id = parsed.getId();
+
+        switch (kind) {
+            case RANGE:
+                return artist + "/" + (id - id % range);
+            case MONTH:
+                if (id <= lastSecond) {
+                    return artist + "/" + month(id);
+                }
+                return artist + "/" + (id - id % defaultRange);
+            default:
+                return artist;
+        }
+    }
+
+    /**
+     * Returns the artist a directory belongs to.
+     *
+     * @param directory  directory relative to the stash
+     * @return           name of the artist
+     */
+    static String artistOf(String directory)
+    {
+        int slash = directory.indexOf('/');
+        return slash < 0 ? directory : directory.substring(0, slash);
+    }
+
+    /**
+     * @return  how the files are spread
+     */
+    Kind getKind() { return kind; }
+
+    //==================================================================================================================
+    // Helper Methods
+    //==================================================================================================================
+
+    /**
+     * Formats the month of a time in seconds as yyyy-MM, in UTC.
+     */
+    private static String month(long seconds)
+    {
+        LocalDate date = LocalDate.ofEpochDay(seconds / 86400);
+        int month = date.getMonthValue();
+
+        return date.getYear() + (month < 10 ? "-0" : "-") + month;
+    }
+}
@@ -0,0 +1,249 @@
+package seledrex.app;
+
+//======================================================================================================================
+// Imports
+//======================================================================================================================
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+//======================================================================================================================
+// Stash Registry
+//======================================================================================================================
+
+/**
+ * Thread-safe record of which submissions are in the stash, shared by all
+ * download workers. Before downloading a submission, a worker claims it.
+ * Only one worker can hold the claim at a time, and a submission already
+ * in the stash cannot be claimed at all. Once the file is in the stash,
+ * the claim is committed, and the submission joins the stash for good.
+ * If the download fails, the claim is aborted and another worker may try.
+ * This way each submission is fetched once, however many workers see it.
+ *
+ * Claims in flight are kept in a concurrent map. The submissions in the
+ * stash are split over a number of {@link SubmissionSet} stripes, each
+ * with its own lock, chosen by submission number. Workers only wait on
+ * each other when they touch the same stripe at the same moment.
+ *
+ * A {@link StashFilter} may be put in front of the stripes. Submissions the
+ * filter has never seen are then turned away without taking any lock.
+ *
+ * @author Eric Auster
+ */
+class StashRegistry
+{
+    //==================================================================================================================
+    // Properties
+    //==================================================================================================================
+
+    private static final int stripeCount = 64; // Power of two
+
+    private final SubmissionSet[] stripes; // Submissions in the stash
+    private final ConcurrentMap<String, Boolean> claims; // Submissions being downloaded
+    private volatile StashFilter filter; // Answers most misses, null if not used
+
+    //==================================================================================================================
+    // Constructor
+    //==================================================================================================================
+
+    /**
+     * Creates an empty registry.
+     */
+    StashRegistry()
+    {
+        stripes = new SubmissionSet[stripeCount];
+        claims = new ConcurrentHashMap<String, Boolean>();
+
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new SubmissionSet();
+        }
+    }
+
+    //==================================================================================================================
+    // Methods
+    //==================================================================================================================
+
+    /**
+     * Puts a filter in front of the registry, adding every submission
+     * already in it. This should be done before the registry is shared
+     * with other threads.
+     *
+     * @param filter  filter to use, or null to stop using one
+     */
+    void setFilter(StashFilter filter)
+    {
+        this.filter = filter;
+
+        if (filter == null) {
+            return;
+        }
+
+        for (SubmissionSet stripe : stripes) {
+            synchronized (stripe) {
+                stripe.addKeysTo(filter);
+            }
+        }
+    }
+
+    /**
+     * Claims a submission for download.
+     *
+     * @param name  filename of the submission
+     * @return      true if the caller now holds the claim, false if the
+     *              submission is in the stash or claimed by someone else
+     */
+    boolean claim(String name)
+    {
+        if (contains(name)) {
+            return false;
+        }
+
+        if (claims.putIfAbsent(name, Boolean.TRUE) != null) {
+            return false;
+        }
+
+        // Someone may have committed it between the two checks
+        if (contains(name)) {
+            claims.remove(name);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Puts a claimed submission in the stash and lets go of the claim.
+     *
+     * @param name  filename of the submission
+     */
+    void commit(String name)
+    {
+        add(name);
+        claims.remove(name);
+    }
+
+    /**
+     * Lets go of a claim without putting the submission in the stash. Does
+     * nothing if the claim was already committed.
+     *
+     * @param name  filename of the submission
+     */
+    void abort(String name)
+    {
+        claims.remove(name);
+    }
+
+    /**
+     * Adds a submission to the stash without claiming it first.
+     *
+     * @param name  filename of the submission
+     */
+    void add(String name)
+    {
+        SubmissionSet stripe = stripeOf(name);
+
+        synchronized (stripe) {
+            stripe.add(name);
+        }
+
+        StashFilter filter = this.filter;
+
+        if (filter != null)
+        {
+            long key = SubmissionSet.keyOf(name);
+
+            if (key >= 0) {
+                filter.add(key);
+            }
+        }
+    }
+
+    /**
+     * Adds every submission in an array to the stash.
+     *
+     * @param names  filenames of the submissions
+     */
+    void addAll(String[] names)
+    {
+        for (String name : names) {
+            add(name);
+        }
+    }
+
+    /**
+     * Takes a submission out of the stash, for when its file is deleted.
+     *
+     * @param name  filename of the submission
+     */
+    void remove(String name)
+    {
+        SubmissionSet stripe = stripeOf(name);
+
+        synchronized (stripe) {
+            stripe.remove(name);
+        }
+    }
+
+    /**
+     * Checks if a submission is in the stash. Claims in flight do not count.
+     *
+     * @param name  filename of the submission
+     * @return      true if it is in the stash
+     */
+    boolean contains(String name)
+    {
+        StashFilter filter = this.filter;
+
+        // Most submissions that are not in the stash stop here
+        if (filter != null)
+        {
+            long key = SubmissionSet.keyOf(name);
+
+            if (key >= 0 && !filter.mightContain(key)) {
+                return false;
+            }
+        }
+
+        SubmissionSet stripe = stripeOf(name);
+
+        synchronized (stripe) {
+            return stripe.contains(name);
+        }
+    }
+
+    /**
+     * @return  number of submissions in the stash
+     */
+    int size()
+    {
+        int size = 0;
+
+        for (SubmissionSet stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+
+        return size;
+    }
+
+    //==================================================================================================================
+    // Helper Methods
+    //==================================================================================================================
+
+    /**
+     * Picks the stripe of a submission, so that names with the same
+     * submission number always share a stripe.
+     */
+    private SubmissionSet stripeOf(String name)
+    {
+        long id = SubmissionName.parseId(name);
+        int hash = id < 0 ? name.hashCode() : (int) (id ^ id >>> 32);
+
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+
+        return stripes[hash & (stripeCount - 1)];
+    }
+}
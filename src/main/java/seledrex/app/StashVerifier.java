@@ -0,0 +1,409 @@
+package seledrex.app;
+
+//======================================================================================================================
+// Imports
+//======================================================================================================================
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import static org.apache.commons.lang3.exception.ExceptionUtils.getStackTrace;
+
+//======================================================================================================================
+// Stash Verifier
+//======================================================================================================================
+
+/**
+ * Checks the files of the stash for damage, such as downloads that were
+ * cut short. Every file is opened and only its first and last bytes are
+ * read, so the whole stash can be checked quickly. Formats that may keep
+ * other data after their end marker have more of their end read, up to
+ * the most a ZIP comment can hold for docx files:
+ *
+ * empty       the file has no bytes
+ * size        the size differs from the one in the content index
+ * header      the first bytes do not match the extension
+ * truncated   the end of the file is missing
+ * hash        the contents differ from the hash in the content index
+ * unreadable  the file could not be read
+ *
+ * Comparing hashes reads every byte of the files that have a hash in the
+ * content index, so it is optional. Directories are split into batches
+ * that are checked on several threads at once. Damaged files are written
+ * to verify.tsv in the stash and to the log as soon as they are found,
+ * one line per file:
+ *
+ * path  size  problem
+ *
+ * @author Eric Auster
+ */
+class StashVerifier
+{
+    //==================================================================================================================
+    // Properties
+    //==================================================================================================================
+
+    static final String filename = "verify.tsv";
+    static final String empty = "empty";
+    static final String size = "size";
+    static final String header = "header";
+    static final String truncated = "truncated";
+    static final String hash = "hash";
+    static final String unreadable = "unreadable";
+    private static final int batchSize = 256; // Files checked by a single task
+    private static final int headLength = 16; // Bytes read from the start of a file
+    private static final int tailLength = 64; // Bytes read from the end of a file
+    private static final int jpegTailLength = 4096; // Bytes read from the end of a JPEG, which may have data after EOI
+    private static final int zipTailLength = 22 + 65535; // End of central directory record and the longest comment
+
+    private final File stash; // Stash folder
+    private final int threads; // Number of files read at once, 1 means sequential
+    private final boolean rehash; // Whether to compare hashes
+    private final App app;
+    private final AtomicLong checked; // Files checked
+    private final AtomicLong bytesRead; // Bytes read from disk
+    private final AtomicLong problems; // Damaged files found
+    private Writer report;
+
+    //==================================================================================================================
+    // Constructor
+    //==================================================================================================================
+
+    /**
+     * Creates a verifier for a stash.
+     *
+     * @param stash    stash folder
+     * @param threads  number of files read at once
+     * @param rehash   true to compare the hashes in the content index as well
+     * @param app      application used for logging
+     */
+    StashVerifier(File stash, int threads, boolean rehash, App app)
+    {
+        this.stash = stash;
+        this.threads = Math.max(1, threads);
+        this.rehash = rehash;
+        this.app = app;
+        this.checked = new AtomicLong();
+        this.bytesRead = new AtomicLong();
+        this.problems = new AtomicLong();
+    }
+
+    //==================================================================================================================
+    // Methods
+    //==================================================================================================================
+
+    /**
+     * Checks every file of the stash's artist directories.
+     *
+     * @param index     refreshed index of the stash's directories
+     * @param recorded  content index entries, by path relative to the stash
+     * @return          number of damaged files
+     * @throws IOException  if the report cannot be written
+     */
+    long verify(StashIndex index, final Map<String, ContentIndex.Entry> recorded) throws IOException
+    {
+        long start = System.nanoTime();
+        report = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(new File(stash, filename)), StandardCharsets.UTF_8));
+        ExecutorService pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+
+        try {
+            report.write("# path\tsize\tproblem\n");
+
+            for (Map.Entry<String, StashIndex.Directory> entry : index.getDirectories().entrySet())
+            {
+                final String path = entry.getKey();
+                final String[] files = entry.getValue().files;
+
+                // Files directly inside the stash and downloads in progress are not artwork
+                if (path.isEmpty() || path.equals("download") || path.startsWith("download/")) {
+                    continue;
+                }
+
+                // Hand out the directory a batch at a time
+                for (int from = 0; from < files.length; from += batchSize)
+                {
+                    final int first = from;
+                    final int last = Math.min(files.length, from + batchSize);
+
+                    if (pool == null) {
+                        checkBatch(path, files, first, last, recorded);
+                        continue;
+                    }
+
+                    pool.execute(new Runnable() {
+                        public void run() {
+                            checkBatch(path, files, first, last, recorded);
+                        }
+                    });
+                }
+            }
+        } finally {
+            if (pool != null)
+            {
+                pool.shutdown();
+
+                // Wait for all the batches to finish
+                try {
+                    while (!pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS)) {
+                        Thread.sleep(10);
+                    }
+                } catch (InterruptedException e) {
+                    pool.shutdownNow();
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            synchronized (report) {
+                report.close();
+            }
+        }
+
+        // Report the throughput
+        double seconds = (System.nanoTime() - start) / 1000000000.0;
+        double megabytes = bytesRead.get() / (1024.0 * 1024.0);
+
+        app.appendToLog(String.format(Locale.ROOT, "Verified %d files with %d thread(s) in %.2f s "
+                        + "(%.0f files/s, %.1f MB read at %.1f MB/s): %d damaged\n",
+                checked.get(), threads, seconds, seconds > 0 ? checked.get() / seconds : 0.0, megabytes,
+                seconds > 0 ? megabytes / seconds : 0.0, problems.get()));
+
+        return problems.get();
+    }
+
+    /**
+     * Returns how many bytes to read from the end of a file to find the
+     * end marker of its format.
+     *
+     * @param extension  lower case extension
+     * @return           number of bytes to read
+     */
+    static int tailLengthOf(String extension)
+    {
+        if (extension.equals("jpg") || extension.equals("jpeg")) {
+            return jpegTailLength;
+        } else if (extension.equals("docx")) {
+            return zipTailLength;
+        }
+
+        return tailLength;
+    }
+
+    /**
+     * Checks the start and end of a file against what its extension
+     * promises.
+     *
+     * @param extension  lower case extension
+     * @param head       first bytes of the file
+     * @param headRead   number of bytes in head
+     * @param tail       last bytes of the file
+     * @param tailRead   number of bytes in tail
+     * @param length     size of the file in bytes
+     * @return           the problem found, or null if the file looks whole
+     */
+    static String inspect(String extension, byte[] head, int headRead, byte[] tail, int tailRead, long length)
+    {
+        if (extension.equals("jpg") || extension.equals("jpeg")) {
+            if (!startsWith(head, headRead, 0xFF, 0xD8, 0xFF)) return header;
+            if (find(tail, tailRead, 0xFF, 0xD9) < 0) return truncated;
+        }
+        else if (extension.equals("png")) {
+            if (!startsWith(head, headRead, 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A)) return header;
+            if (find(tail, tailRead, 'I', 'E', 'N', 'D') < 0) return truncated;
+        }
+        else if (extension.equals("gif")) {
+            if (!startsWith(head, headRead, 'G', 'I', 'F', '8')) return header;
+
+            // Last byte is the trailer, ignoring any padding after it
+            int end = tailRead - 1;
+            while (end >= 0 && tail[end] == 0) end--;
+            if (end < 0 || tail[end] != 0x3B) return truncated;
+        }
+        else if (extension.equals("swf")) {
+            // Only uncompressed files state their length on disk
+            if (startsWith(head, headRead, 'F', 'W', 'S')) {
+                if (headRead >= 8 && littleEndian(head, 4) > length) return truncated;
+            } else if (!startsWith(head, headRead, 'C', 'W', 'S') && !startsWith(head, headRead, 'Z', 'W', 'S')) {
+                return header;
+            }
+        }
+        else if (extension.equals("mid")) {
+            if (!startsWith(head, headRead, 'M', 'T', 'h', 'd')) return header;
+        }
+        else if (extension.equals("wav")) {
+            if (!startsWith(head, headRead, 'R', 'I', 'F', 'F') || headRead < 12 || head[8] != 'W'
+                    || head[9] != 'A' || head[10] != 'V' || head[11] != 'E') return header;
+            if (littleEndian(head, 4) + 8 > length) return truncated;
+        }
+        else if (extension.equals("mp3") || extension.equals("mpeg")) {
+            boolean tagged = startsWith(head, headRead, 'I', 'D', '3');
+            boolean frame = headRead >= 2 && (head[0] & 0xFF) == 0xFF && (head[1] & 0xE0) == 0xE0;
+            boolean stream = startsWith(head, headRead, 0x00, 0x00, 0x01) && headRead >= 4
+                    && ((head[3] & 0xFF) == 0xBA || (head[3] & 0xFF) == 0xB3);
+            if (!tagged && !frame && !stream) return header;
+        }
+        else if (extension.equals("docx")) {
+            if (!startsWith(head, headRead, 'P', 'K', 0x03, 0x04)) return header;
+            if (find(tail, tailRead, 'P', 'K', 0x05, 0x06) < 0) return truncated;
+        }
+
+        return null;
+    }
+
+    //==================================================================================================================
+    // Helper Methods
+    //==================================================================================================================
+
+    /**
+     * Checks a batch of the files of a directory.
+     *
+     * @param path      directory, relative to the stash
+     * @param files     names of the directory's files
+     * @param from      first file of the batch
+     * @param to        end of the batch, exclusive
+     * @param recorded  content index entries, by path relative to the stash
+     */
+    private void checkBatch(String path, String[] files, int from, int to, Map<String, ContentIndex.Entry> recorded)
+    {
+        File dir = new File(stash, path);
+        byte[] head = new byte[headLength];
+        byte[] tail = new byte[zipTailLength];
+
+        for (int i = from; i < to; i++)
+        {
+            String relative = path + "/" + files[i];
+            File file = new File(dir, files[i]);
+            RandomAccessFile in = null;
+            long length = -1;
+            String problem;
+
+            try {
+                in = new RandomAccessFile(file, "r");
+                length = in.length();
+                ContentIndex.Entry entry = recorded.get(relative);
+
+                if (length == 0) {
+                    problem = empty;
+                } else if (entry != null && entry.size != length) {
+                    problem = size;
+                } else {
+                    String extension = files[i].substring(files[i].lastIndexOf('.') + 1).toLowerCase(Locale.ROOT);
+
+                    // Read the start and the end of the file
+                    int headRead = (int) Math.min(headLength, length);
+                    int tailRead = (int) Math.min(tailLengthOf(extension), length);
+                    in.readFully(head, 0, headRead);
+                    in.seek(length - tailRead);
+                    in.readFully(tail, 0, tailRead);
+                    bytesRead.addAndGet(headRead + tailRead);
+
+                    problem = inspect(extension, head, headRead, tail, tailRead, length);
+
+                    // Read the whole file if asked to and there is a hash to compare with
+                    if (problem == null && rehash && entry != null && entry.hashed)
+                    {
+                        in.close();
+                        in = null;
+
+                        if (ContentHash.of(file.toPath()) != entry.hash) {
+                            problem = hash;
+                        }
+
+                        bytesRead.addAndGet(length);
+                    }
+                }
+            } catch (FileNotFoundException e) {
+                // Deleted since the stash was indexed
+                continue;
+            } catch (IOException e) {
+                problem = unreadable;
+            } finally {
+                try {
+                    if (in != null) in.close();
+                } catch (IOException e) {
+                    // Only read from
+                }
+            }
+
+            checked.incrementAndGet();
+
+            if (problem != null) {
+                record(relative, length, problem);
+            }
+        }
+    }
+
+    /**
+     * Writes a damaged file to the report and the log.
+     */
+    private void record(String relative, long length, String problem)
+    {
+        problems.incrementAndGet();
+        app.appendToLog("Damaged (" + problem + "): " + relative + "\n");
+
+        StringBuilder line = new StringBuilder(relative.length() + 32);
+        line.append(relative).append('\t');
+        if (length < 0) line.append('-'); else line.append(length);
+        line.append('\t').append(problem).append('\n');
+
+        try {
+            synchronized (report) {
+                report.append(line);
+            }
+        } catch (IOException e) {
+            app.appendToLog("Error writing " + filename + ":\n" + getStackTrace(e));
+        }
+    }
+
+    /**
+     * Checks if the bytes read start with the given values.
+     */
+    private static boolean startsWith(byte[] bytes, int read, int... expected)
+    {
+        if (read < expected.length) {
+            return false;
+        }
+
+        for (int i = 0; i < expected.length; i++) {
+            if ((bytes[i] & 0xFF) != expected[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns where the given values last appear in the bytes read, or -1.
+     */
+    private static int find(byte[] bytes, int read, int... expected)
+    {
+        for (int i = read - expected.length; i >= 0; i--)
+        {
+            int j = 0;
+
+            while (j < expected.length && (bytes[i + j] & 0xFF) == expected[j]) {
+                j++;
+            }
+
+            if (j == expected.length) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Reads an unsigned 32 bit little endian number.
+     */
+    private static long littleEndian(byte[] bytes, int offset)
+    {
+        return (bytes[offset] & 0xFFL) | (bytes[offset + 1] & 0xFFL) << 8 | (bytes[offset + 2] & 0xFFL) << 16
+                | (bytes[offset + 3] & 0xFFL) << 24;
+    }
+}
@@ -0,0 +1,380 @@
+package seledrex.app;
+
+//======================================================================================================================
+// Imports
+//======================================================================================================================
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import static org.apache.commons.lang3.exception.ExceptionUtils.getStackTrace;
+
+//======================================================================================================================
+// Stash Watcher
+//======================================================================================================================
+
+/**
+ * Keeps the stash's {@link StashRegistry}, {@link StashIndex} and the
+ * sorter's {@link StashDirectoryCache} up to date while the application
+ * runs, so files put in the stash by other programs are seen without
+ * scanning the stash again. Every directory in the stash is registered
+ * with a WatchService, apart from the download folder, whose files are
+ * only passing through.
+ *
+ * Events are not handled one at a time. They are gathered until the stash
+ * has been quiet for a moment, and then each directory that changed is
+ * listed once. Its files are added to the registry and deleted files are
+ * taken out, and both are passed on to the sorter along with the names
+ * that were created. The sorter leaves out the files it put there itself,
+ * counts the new files of other programs one by one, and only counts an
+ * artist again when another program deleted its files. The new listings are
+ * written to the index file every so often and when the watcher is
+ * closed, so the next startup does not have to list those directories
+ * again.
+ *
+ * @author Eric Auster
+ */
+class StashWatcher implements Runnable
+{
+    //==================================================================================================================
+    // Properties
+    //==================================================================================================================
+
+    private static final long quietPeriod = 500; // Time without events that ends a batch, in ms
+    private static final long maxBatchDelay = 5000; // Longest a batch is held back, in ms
+    private static final long saveInterval = 60000; // Least time between writes of the index, in ms
+
+    private final Path root; // Stash folder
+    private final Path skipped; // Download folder
+    private final StashRegistry registry;
+    private final ArtworkSorter sorter;
+    private final App app;
+    private final WatchService watcher;
+    private final Map<WatchKey, Path> keys; // Directory of each registration
+    private final Map<String, StashIndex.Directory> unsaved; // Listings not written to the index yet
+    private Thread thread;
+    private long lastSave;
+    private boolean failed; // Whether a directory could not be registered
+
+    //==================================================================================================================
+    // Constructor
+    //==================================================================================================================
+
+    /**
+     * Creates a watcher for a stash. Nothing is watched until it is started.
+     *
+     * @param root      stash folder
+     * @param skipped   folder inside the stash that is not watched
+     * @param registry  registry to keep up to date
+     * @param sorter    sorter whose output folder is the stash
+     * @param app       application, for logging
+     * @throws IOException  if the file system cannot be watched
+     */
+    StashWatcher(File root, File skipped, StashRegistry registry, ArtworkSorter sorter, App app) throws IOException
+    {
+        this.root = root.toPath();
+        this.skipped = skipped.toPath();
+        this.registry = registry;
+        this.sorter = sorter;
+        this.app = app;
+        this.watcher = this.root.getFileSystem().newWatchService();
+        this.keys = new HashMap<WatchKey, Path>();
+        this.unsaved = new HashMap<String, StashIndex.Directory>();
+        this.lastSave = System.currentTimeMillis();
+    }
+
+    //==================================================================================================================
+    // Methods
+    //==================================================================================================================
+
+    /**
+     * Registers the given directories and starts watching them on a
+     * background thread.
+     *
+     * @param directories  paths of the stash's directories, relative to the stash
+     */
+    void start(Collection<String> directories)
+    {
+        for (String path : directories) {
+            register(path.isEmpty() ? root : root.resolve(path));
+        }
+
+        thread = new Thread(this, "Stash watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops watching and writes out the listings picked up since the last
+     * write.
+     */
+    void close()
+    {
+        try {
+            watcher.close();
+        } catch (IOException e) {
+            app.appendToLog("Error closing stash watcher:\n" + getStackTrace(e));
+        }
+
+        if (thread != null)
+        {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        save();
+    }
+
+    /**
+     * Thread's workload. Waits for a batch of events and applies it, until
+     * the watcher is closed.
+     */
+    public void run()
+    {
+        try {
+            while (true)
+            {
+                Set<Path> changed = new HashSet<Path>();
+                List<Path> deleted = new ArrayList<Path>();
+                Map<Path, Set<String>> created = new HashMap<Path, Set<String>>();
+
+                // Wait for the first event of a batch
+                collect(watcher.take(), changed, deleted, created);
+                long deadline = System.currentTimeMillis() + maxBatchDelay;
+
+                // Then keep collecting until the stash goes quiet
+                while (true)
+                {
+                    long wait = Math.min(quietPeriod, deadline - System.currentTimeMillis());
+                    WatchKey key = wait > 0 ? watcher.poll(wait, TimeUnit.MILLISECONDS) : null;
+
+                    if (key == null) {
+                        break;
+                    }
+
+                    collect(key, changed, deleted, created);
+                }
+
+                apply(changed, deleted, created);
+
+                if (System.currentTimeMillis() - lastSave >= saveInterval) {
+                    save();
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            // Watcher was closed
+        } catch (InterruptedException e) {
+            // Application is shutting down
+        }
+    }
+
+    //==================================================================================================================
+    // Helper Methods
+    //==================================================================================================================
+
+    /**
+     * Notes which directories the events of a key changed.
+     *
+     * @param key      key that was signalled
+     * @param changed  directories to list again
+     * @param deleted  files and directories that were deleted
+     * @param created  names of the files created in each directory, null for a directory where they are not known
+     */
+    private void collect(WatchKey key, Set<Path> changed, List<Path> deleted, Map<Path, Set<String>> created)
+    {
+        Path dir = keys.get(key);
+
+        for (WatchEvent<?> event : key.pollEvents())
+        {
+            if (dir == null) {
+                continue;
+            }
+
+            // Events were lost, so list the whole directory
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                changed.add(dir);
+                created.put(dir, null);
+                continue;
+            }
+
+            Path child = dir.resolve((Path) event.context());
+
+            if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                deleted.add(child);
+                changed.add(dir);
+            } else if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                // New directory, which may already hold files
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                    registerTree(child, changed, created);
+                    changed.add(dir);
+                }
+            } else if (!dir.equals(root)) {
+                // Files directly inside the stash are not artwork
+                changed.add(dir);
+
+                if (!created.containsKey(dir)) {
+                    created.put(dir, new HashSet<String>());
+                }
+
+                Set<String> names = created.get(dir);
+
+                if (names != null) {
+                    names.add(child.getFileName().toString());
+                }
+            }
+        }
+
+        // Forget directories that are gone
+        if (!key.reset()) {
+            keys.remove(key);
+        }
+    }
+
+    /**
+     * Lists each changed directory once and brings the registry up to date.
+     *
+     * @param changed  directories to list again
+     * @param deleted  files and directories that were deleted
+     * @param created  names of the files created in each directory, null for a directory where they are not known
+     */
+    private void apply(Set<Path> changed, List<Path> deleted, Map<Path, Set<String>> created)
+    {
+        Set<String> recount = new HashSet<String>();
+
+        // Take out deleted files first, so the listings can put back any
+        // file that only shared a key with one of them
+        for (Path path : deleted)
+        {
+            String name = path.getFileName().toString();
+            registry.remove(name);
+            String artist = sorter.fileDeleted(relative(path.getParent()), name);
+            unsaved.put(relative(path), null);
+
+            if (artist != null) {
+                recount.add(artist);
+            }
+        }
+
+        for (Path dir : changed)
+        {
+            File file = dir.toFile();
+            long modified = file.lastModified();
+
+            // Directory was removed after its events came in
+            if (modified == 0) {
+                unsaved.put(relative(dir), null);
+                continue;
+            }
+
+            StashIndex.Directory directory = StashIndex.list(file, modified);
+            registry.addAll(directory.files);
+            sorter.directoryChanged(relative(dir), directory.files,
+                    created.containsKey(dir) ? created.get(dir) : Collections.<String>emptySet());
+            unsaved.put(relative(dir), directory);
+        }
+
+        // The size of a deleted file is gone, so its artist is counted again once
+        for (String artist : recount) {
+            sorter.recount(artist);
+        }
+
+        // The submission index no longer matches the stash
+        app.stashChanged();
+    }
+
+    /**
+     * Writes the listings picked up so far to the index file.
+     */
+    private void save()
+    {
+        lastSave = System.currentTimeMillis();
+
+        if (unsaved.isEmpty()) {
+            return;
+        }
+
+        try {
+            StashIndex.update(root.toFile(), unsaved);
+            unsaved.clear();
+        } catch (IOException e) {
+            app.appendToLog("Error writing " + StashIndex.filename + ":\n" + getStackTrace(e));
+        }
+    }
+
+    /**
+     * Registers a new directory and everything below it, marking them all
+     * as changed. Files may have been created in them before they were
+     * registered, so their names are not known.
+     *
+     * @param start    new directory
+     * @param changed  directories to list again
+     * @param created  names of the files created in each directory
+     */
+    private void registerTree(Path start, final Set<Path> changed, final Map<Path, Set<String>> created)
+    {
+        try {
+            Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    if (!register(dir)) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    changed.add(dir);
+                    created.put(dir, null);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path path, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            app.appendToLog("Error watching " + start + ":\n" + getStackTrace(e));
+        }
+    }
+
+    /**
+     * Registers a single directory with the watch service.
+     *
+     * @param dir  directory to watch
+     * @return     false if the directory is not watched
+     */
+    private boolean register(Path dir)
+    {
+        if (dir.startsWith(skipped)) {
+            return false;
+        }
+
+        try {
+            WatchKey key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+            keys.put(key, dir);
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException e) {
+            // Only report the first failure, as running out of watches fails every registration after it
+            if (!failed) {
+                failed = true;
+                app.appendToLog("Error watching " + dir + ", some directories will not be watched:\n"
+                        + getStackTrace(e));
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Returns the path of a directory relative to the stash, as used by the index.
+     */
+    private String relative(Path dir)
+    {
+        return root.relativize(dir).toString().replace('\\', '/');
+    }
+}
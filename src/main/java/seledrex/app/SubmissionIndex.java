@@ -0,0 +1,588 @@
+package seledrex.app;
+
+//======================================================================================================================
+// Imports
+//======================================================================================================================
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+//======================================================================================================================
+// Submission Index
+//======================================================================================================================
+
+/**
+ * Sorted index of every submission in the stash, kept in the stash as
+ * submission.index and memory-mapped read-only, so the records stay off
+ * the heap. Each record is 20 bytes: the submission number, the number of
+ * the artist and the size of the file. Records are sorted by submission
+ * number, so a submission is found by binary search and a range of
+ * submissions is read straight from the mapped file. A table with the
+ * newest submission and file count of each artist follows the records.
+ * Only the artists' names are read onto the heap.
+ *
+ * The index is written as a whole by {@link #build}, from a refreshed
+ * {@link StashIndex}. Files that were already in the previous index keep
+ * their recorded size, so only new files are looked at on disk. It shows
+ * the stash as it was when it was built.
+ *
+ * While the index is behind the stash, an empty submission.index.stale
+ * file is kept next to it. It is left by downloads, sorts and the
+ * {@link StashWatcher} as soon as they change the stash, and by a build
+ * when it starts, and is only removed once a build finished with nothing
+ * changed meanwhile. A build that was stopped halfway, or changes that
+ * never made it into an index, are then caught at the next startup even
+ * if the stash index no longer shows them. The new index is synced to
+ * disk before it replaces the old one, and its length is checked against
+ * its header when it is opened.
+ *
+ * @author Eric Auster
+ */
+class SubmissionIndex
+{
+    //==================================================================================================================
+    // Properties
+    //==================================================================================================================
+
+    static final String filename = "submission.index";
+    static final String staleFilename = "submission.index.stale";
+    private static final int magic = 0x53494458; // "SIDX"
+    private static final int version = 1;
+    private static final int headerSize = 32;
+    private static final int recordSize = 20; // Submission number, artist number and size
+    private static final int artistSize = 12; // Newest submission number and file count
+
+    private final ByteBuffer map;
+    private final int records; // Number of records
+    private final long artistsStart; // Offset of the artist table
+    private final String[] artists; // Artist names by number
+    private final Map<String, Integer> artistNumbers;
+
+    //==================================================================================================================
+    // Constructor
+    //==================================================================================================================
+
+    /**
+     * Reads the header and artist names of a mapped index.
+     *
+     * @param map  mapped index file
+     * @throws IOException  if the index is not valid
+     */
+    private SubmissionIndex(MappedByteBuffer map) throws IOException
+    {
+        if (map.capacity() < headerSize || map.getInt(0) != magic || map.getInt(4) != version) {
+            throw new IOException(filename + " has an unknown format");
+        }
+
+        this.map = map;
+        this.records = map.getInt(8);
+        int artistCount = map.getInt(12);
+        this.artistsStart = headerSize + (long) records * recordSize;
+
+        // A file cut short cannot hold the records and artists its header announces
+        if (records < 0 || artistCount < 0 || map.capacity() < artistsStart + (long) artistCount * artistSize) {
+            throw new IOException(filename + " is incomplete");
+        }
+
+        this.artists = new String[artistCount];
+        this.artistNumbers = new HashMap<String, Integer>(artistCount * 2);
+
+        // Names follow the artist table
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(readNames(artistCount)));
+
+        for (int i = 0; i < artistCount; i++) {
+            artists[i] = in.readUTF();
+            artistNumbers.put(artists[i], i);
+        }
+    }
+
+    //==================================================================================================================
+    // Methods
+    //==================================================================================================================
+
+    /**
+     * Opens the index of a stash.
+     *
+     * @param stash  stash folder
+     * @return       the index, or null if the stash has none
+     * @throws IOException  if the index cannot be read
+     */
+    static SubmissionIndex open(File stash) throws IOException
+    {
+        File file = new File(stash, filename);
+        File built = new File(stash, filename + ".new");
+
+        // Put in place an index that could not replace the old one while it was mapped
+        if (built.exists()) {
+            try {
+                Files.move(built.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                file = built;
+            }
+        }
+
+        if (!file.exists()) {
+            return null;
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+        // The mapping stays valid after the file is closed
+        try {
+            return new SubmissionIndex(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Checks if the submission index is out of date: it was marked stale
+     * and not built since, or any artist directory was listed again by the
+     * last refresh of the stash index.
+     *
+     * @param stash  stash folder
+     * @param index  refreshed index of the stash's directories
+     * @return       true if the submission index should be built again
+     */
+    static boolean isStale(File stash, StashIndex index)
+    {
+        if (new File(stash, staleFilename).exists()) {
+            return true;
+        }
+
+        for (String path : index.listedPaths()) {
+            if (!isSkipped(path)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Leaves the marker saying the index is behind the stash.
+     *
+     * @param stash  stash folder
+     * @throws IOException  if the marker cannot be written
+     */
+    static void markStale(File stash) throws IOException
+    {
+        File marker = new File(stash, staleFilename);
+
+        if (!marker.exists()) {
+            Files.write(marker.toPath(), new byte[0]);
+        }
+    }
+
+    /**
+     * Removes the marker once an index was built with nothing changed
+     * while it was being built.
+     *
+     * @param stash  stash folder
+     * @throws IOException  if the marker cannot be removed
+     */
+    static void markFresh(File stash) throws IOException
+    {
+        Files.deleteIfExists(new File(stash, staleFilename).toPath());
+    }
+
+    /**
+     * Writes a new index for a stash, replacing the old one. If the old one
+     * is mapped and cannot be replaced, the new one is put in place the next
+     * time the index is opened. The stale marker is left in place, for the
+     * caller to remove if nothing changed during the build.
+     *
+     * @param stash     stash folder
+     * @param index     refreshed index of the stash's directories
+     * @param previous  index to take known sizes from, or null
+     * @throws IOException  if the index cannot be written
+     */
+    static void build(File stash, StashIndex index, SubmissionIndex previous) throws IOException
+    {
+        // Stays behind if the build does not finish
+        markStale(stash);
+
+        Builder builder = new Builder(index.fileCount());
+        SubmissionName parser = SubmissionName.forThread();
+
+        for (Map.Entry<String, StashIndex.Directory> entry : index.getDirectories().entrySet())
+        {
+            String path = entry.getKey();
+
+            if (isSkipped(path)) {
+                continue;
+            }
+
+            for (String name : entry.getValue().files)
+            {
+                if (!parser.parse(name)) {
+                    continue;
+                }
+
+                String artist = parser.getArtist();
+                long size = previous == null ? -1 : previous.sizeOf(parser.getId(), artist);
+
+                // Only look at the file if it is new
+                if (size < 0) {
+                    size = new File(new File(stash, path), name).length();
+                }
+
+                builder.add(parser.getId(), artist, size);
+            }
+        }
+
+        builder.write(new File(stash, filename));
+    }
+
+    /**
+     * @return  number of submissions in the index
+     */
+    int size() { return records; }
+
+    /**
+     * Finds a submission by number. If more than one file has the number,
+     * the first is returned.
+     *
+     * @param id  submission number
+     * @return    the submission, or null if it is not in the index
+     */
+    Entry get(long id)
+    {
+        int i = lowerBound(id);
+        return i < records && idAt(i) == id ? entryAt(i) : null;
+    }
+
+    /**
+     * Lists the submissions with numbers in a range, oldest first.
+     *
+     * @param from  smallest submission number
+     * @param to    largest submission number
+     * @return      submissions in the range
+     */
+    List<Entry> range(long from, long to)
+    {
+        List<Entry> entries = new ArrayList<Entry>();
+
+        for (int i = lowerBound(from); i < records && idAt(i) <= to; i++) {
+            entries.add(entryAt(i));
+        }
+
+        return entries;
+    }
+
+    /**
+     * Counts the submissions with numbers in a range, without reading them.
+     *
+     * @param from  smallest submission number
+     * @param to    largest submission number
+     * @return      number of submissions in the range
+     */
+    int count(long from, long to)
+    {
+        return to < from ? 0 : lowerBound(to + 1) - lowerBound(from);
+    }
+
+    /**
+     * Looks up the newest submission of an artist.
+     *
+     * @param artist  artist name
+     * @return        newest submission number, or -1 if the artist has none
+     */
+    long newest(String artist)
+    {
+        Integer number = artistNumbers.get(artist);
+        return number == null ? -1 : map.getLong((int) (artistsStart + (long) number * artistSize));
+    }
+
+    /**
+     * Lists the newest submission of every artist.
+     *
+     * @return  newest submission number keyed by artist name
+     */
+    Map<String, Long> newestPerArtist()
+    {
+        Map<String, Long> newest = new HashMap<String, Long>(artists.length * 2);
+
+        for (int i = 0; i < artists.length; i++) {
+            newest.put(artists[i], map.getLong((int) (artistsStart + (long) i * artistSize)));
+        }
+
+        return newest;
+    }
+
+    /**
+     * Looks up the recorded size of a file.
+     *
+     * @param id      submission number
+     * @param artist  artist name, as in the filename
+     * @return        size in bytes, or -1 if the file is not in the index
+     */
+    long sizeOf(long id, String artist)
+    {
+        Integer number = artistNumbers.get(artist);
+
+        if (number == null) {
+            return -1;
+        }
+
+        for (int i = lowerBound(id); i < records && idAt(i) == id; i++) {
+            if (map.getInt(headerSize + i * recordSize + 8) == number) {
+                return map.getLong(headerSize + i * recordSize + 12);
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Looks up the number of files of an artist.
+     *
+     * @param artist  artist name
+     * @return        number of files
+     */
+    int countOf(String artist)
+    {
+        Integer number = artistNumbers.get(artist);
+        return number == null ? 0 : map.getInt((int) (artistsStart + (long) number * artistSize + 8));
+    }
+
+    //==================================================================================================================
+    // Helper Methods
+    //==================================================================================================================
+
+    /**
+     * Files directly inside the stash and downloads in progress are not artwork.
+     */
+    private static boolean isSkipped(String path)
+    {
+        return path.isEmpty() || path.equals("download") || path.startsWith("download/");
+    }
+
+    /**
+     * Binary search for the first record whose number is not below the given one.
+     */
+    private int lowerBound(long id)
+    {
+        int low = 0;
+        int high = records;
+
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+
+            if (idAt(mid) < id) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+    private long idAt(int i) { return map.getLong(headerSize + i * recordSize); }
+
+    private Entry entryAt(int i)
+    {
+        int offset = headerSize + i * recordSize;
+        return new Entry(map.getLong(offset), artists[map.getInt(offset + 8)], map.getLong(offset + 12));
+    }
+
+    /**
+     * Copies the artist names from the end of the mapped file.
+     */
+    private byte[] readNames(int artistCount)
+    {
+        ByteBuffer names = map.duplicate();
+        names.position((int) (artistsStart + (long) artistCount * artistSize));
+        byte[] bytes = new byte[names.remaining()];
+        names.get(bytes);
+        return bytes;
+    }
+
+    //==================================================================================================================
+    // Entry
+    //==================================================================================================================
+
+    /**
+     * A single submission of the stash.
+     */
+    static class Entry
+    {
+        final long id;
+        final String artist;
+        final long size;
+
+        Entry(long id, String artist, long size)
+        {
+            this.id = id;
+            this.artist = artist;
+            this.size = size;
+        }
+    }
+
+    //==================================================================================================================
+    // Builder
+    //==================================================================================================================
+
+    /**
+     * Gathers records in primitive arrays, then sorts and writes them.
+     */
+    private static class Builder
+    {
+        private long[] ids;
+        private int[] artists;
+        private long[] sizes;
+        private int count;
+        private final Map<String, Integer> artistNumbers;
+        private final List<String> artistNames;
+
+        Builder(long expected)
+        {
+            int capacity = (int) Math.max(16, Math.min(expected, Integer.MAX_VALUE / recordSize));
+            ids = new long[capacity];
+            artists = new int[capacity];
+            sizes = new long[capacity];
+            artistNumbers = new HashMap<String, Integer>();
+            artistNames = new ArrayList<String>();
+        }
+
+        void add(long id, String artist, long size)
+        {
+            Integer number = artistNumbers.get(artist);
+
+            if (number == null) {
+                number = artistNames.size();
+                artistNumbers.put(artist, number);
+                artistNames.add(artist);
+            }
+
+            if (count == ids.length) {
+                int capacity = count * 2;
+                ids = Arrays.copyOf(ids, capacity);
+                artists = Arrays.copyOf(artists, capacity);
+                sizes = Arrays.copyOf(sizes, capacity);
+            }
+
+            ids[count] = id;
+            artists[count] = number;
+            sizes[count] = size;
+            count++;
+        }
+
+        void write(File file) throws IOException
+        {
+            int[] order = sortedOrder();
+            long[] newest = new long[artistNames.size()];
+            int[] counts = new int[artistNames.size()];
+            File temp = new File(file.getPath() + ".tmp");
+            FileOutputStream stream = null;
+            DataOutputStream out = null;
+
+            Arrays.fill(newest, -1);
+
+            try {
+                stream = new FileOutputStream(temp);
+                out = new DataOutputStream(new BufferedOutputStream(stream, 64 * 1024));
+                out.writeInt(magic);
+                out.writeInt(version);
+                out.writeInt(count);
+                out.writeInt(artistNames.size());
+                out.write(new byte[headerSize - 16]);
+
+                // Records, oldest first
+                for (int i : order)
+                {
+                    out.writeLong(ids[i]);
+                    out.writeInt(artists[i]);
+                    out.writeLong(sizes[i]);
+
+                    newest[artists[i]] = Math.max(newest[artists[i]], ids[i]);
+                    counts[artists[i]]++;
+                }
+
+                // Artist table
+                for (int a = 0; a < newest.length; a++) {
+                    out.writeLong(newest[a]);
+                    out.writeInt(counts[a]);
+                }
+
+                // Artist names
+                for (String name : artistNames) {
+                    out.writeUTF(name);
+                }
+
+                // Make sure the whole index is on disk before it is put in place
+                out.flush();
+                stream.getFD().sync();
+            } finally {
+                if (out != null) out.close();
+                else if (stream != null) stream.close();
+            }
+
+            // Keep the finished index apart from a partly written one
+            File built = new File(file.getPath() + ".new");
+            Files.move(temp.toPath(), built.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+            try {
+                Files.move(built.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                // Old index is still mapped, so leave the new one for the next open
+            }
+        }
+
+        /**
+         * Merge sorts the record numbers by submission number, then artist.
+         */
+        private int[] sortedOrder()
+        {
+            int[] order = new int[count];
+            int[] buffer = new int[count];
+
+            for (int i = 0; i < count; i++) {
+                order[i] = i;
+            }
+
+            for (int width = 1; width < count; width *= 2)
+            {
+                for (int low = 0; low < count; low += 2 * width)
+                {
+                    int mid = Math.min(low + width, count);
+                    int high = Math.min(low + 2 * width, count);
+                    int left = low, right = mid, k = low;
+
+                    while (left < mid && right < high) {
+                        buffer[k++] = compare(order[right], order[left]) < 0 ? order[right++] : order[left++];
+                    }
+
+                    while (left < mid) buffer[k++] = order[left++];
+                    while (right < high) buffer[k++] = order[right++];
+                }
+
+                int[] swap = order;
+                order = buffer;
+                buffer = swap;
+            }
+
+            return order;
+        }
+
+        private int compare(int a, int b)
+        {
+            if (ids[a] != ids[b]) {
+                return ids[a] < ids[b] ? -1 : 1;
+            }
+
+            return artists[a] - artists[b];
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package seledrex.app;
+
+//======================================================================================================================
+// Submission Name
+//======================================================================================================================
+
+/**
+ * Scanner for Furaffinity's naming convention:
+ *
+ * [number].[username]_[original filename].[extension]
+ *
+ * A single pass over the characters records where each part starts
+ * and ends, and the number is accumulated into a long as it is read.
+ * No pattern, matcher or substring is created while scanning, so one
+ * instance can be reused for any number of names. Instances are not
+ * thread safe; use {@link #forThread()} to get one per thread.
+ *
+ * @author Eric Auster
+ */
+final class SubmissionName
+{
+    //==================================================================================================================
+    // Properties
+    //==================================================================================================================
+
+    private static final int maxIdDigits = 18; // Longest number that always fits in a long
+    private static final ThreadLocal<SubmissionName> parsers = new ThreadLocal<SubmissionName>() {
+        @Override
+        protected SubmissionName initialValue() {
+            return new SubmissionName();
+        }
+    };
+
+    private String name; // Last name scanned
+    private long id; // Submission number
+    private int artistStart, artistEnd; // Offsets of the username
+    private int titleStart; // Offset of the original filename
+    private int extensionStart; // Offset of the extension, or the length if there is none
+
+    //==================================================================================================================
+    // Methods
+    //==================================================================================================================
+
+    /**
+     * Returns the parser belonging to the calling thread.
+     *
+     * @return  reusable parser
+     */
+    static SubmissionName forThread()
+    {
+        return parsers.get();
+    }
+
+    /**
+     * Scans a filename. On success the offsets and number of this parser
+     * describe the name until the next call.
+     *
+     * @param name  filename to scan
+     * @return      true if the name follows the naming convention
+     */
+    boolean parse(String name)
+    {
+        this.name = name;
+        int length = name.length();
+        int i = 0;
+        long value = 0;
+
+        // Leading submission number
+        while (i < length && i < maxIdDigits)
+        {
+            char c = name.charAt(i);
+
+            if (c < '0' || c > '9') {
+                break;
+            }
+
+            value = value * 10 + (c - '0');
+            i++;
+        }
+
+        // Needs at least one digit followed by a dot
+        if (i == 0 || i == length || name.charAt(i) != '.') {
+            return false;
+        }
+
+        id = value;
+        artistStart = ++i;
+
+        // Username runs up to the first underscore
+        while (i < length && name.charAt(i) != '_') {
+            i++;
+        }
+
+        // Needs a non empty username followed by an underscore
+        if (i == artistStart || i == length) {
+            return false;
+        }
+
+        artistEnd = i;
+        titleStart = i + 1;
+
+        // Extension follows the last dot of the original filename
+        extensionStart = length;
+
+        for (int j = length - 1; j >= titleStart; j--) {
+            if (name.charAt(j) == '.') {
+                extensionStart = j + 1;
+                break;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Scans a filename and returns only its submission number.
+     *
+     * @param name  filename to scan
+     * @return      submission number, or -1 if the name does not match
+     */
+    static long parseId(String name)
+    {
+        SubmissionName parser = forThread();
+        return parser.parse(name) ? parser.id : -1;
+    }
+
+    /**
+     * @return  submission number of the last name scanned
+     */
+    long getId() { return id; }
+
+    /**
+     * @return  offset where the username starts
+     */
+    int getArtistStart() { return artistStart; }
+
+    /**
+     * @return  offset just past the end of the username
+     */
+    int getArtistEnd() { return artistEnd; }
+
+    /**
+     * @return  offset where the original filename starts
+     */
+    int getTitleStart() { return titleStart; }
+
+    /**
+     * @return  offset where the extension starts, or the length of the name if there is none
+     */
+    int getExtensionStart() { return extensionStart; }
+
+    /**
+     * Copies the username out of the last name scanned. This is the only
+     * method that allocates.
+     *
+     * @return  username
+     */
+    String getArtist() { return name.substring(artistStart, artistEnd); }
+}
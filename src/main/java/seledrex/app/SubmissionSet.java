@@ -0,0 +1,295 @@
+package seledrex.app;
+
+//======================================================================================================================
+// Imports
+//======================================================================================================================
+
+import java.util.HashSet;
+import java.util.Set;
+
+//======================================================================================================================
+// Submission Set
+//======================================================================================================================
+
+/**
+ * Set of the artwork filenames in the stash, stored in a fraction of the
+ * memory a set of strings would take. A filename is identified by its
+ * submission number and its artist. So instead of keeping the name, the
+ * set keeps a single long for each file. The submission number takes the
+ * upper bits, and a fingerprint of the artist takes the lower 24 bits.
+ * These keys go into an open addressing table of primitive longs, which
+ * costs 16 to 32 bytes per file instead of 100 or more.
+ *
+ * Two files are only mistaken for each other if they share a submission
+ * number and their artists share a fingerprint. Names that do not follow
+ * the naming convention, or whose number is too large to fit in a key,
+ * are kept as strings in a small secondary set.
+ *
+ * This class is not thread-safe, see {@link StashRegistry} for the
+ * version shared between threads.
+ *
+ * @author Eric Auster
+ */
+class SubmissionSet
+{
+    //==================================================================================================================
+    // Properties
+    //==================================================================================================================
+
+    private static final int artistBits = 24;
+    private static final long maxId = (1L << (63 - artistBits)) - 1;
+    private static final long empty = 0; // Marks a free slot, the key 0 is tracked separately
+    private static final int initialCapacity = 256;
+
+    private long[] keys; // Open addressing table, its length is a power of two
+    private int size; // Number of keys in the table
+    private boolean hasZero; // Whether the key 0 is in the set
+    private final Set<String> others; // Names that cannot be turned into a key
+
+    //==================================================================================================================
+    // Constructor
+    //==================================================================================================================
+
+    /**
+     * Creates an empty set.
+     */
+    SubmissionSet()
+    {
+        keys = new long[initialCapacity];
+        others = new HashSet<String>();
+    }
+
+    //==================================================================================================================
+    // Methods
+    //==================================================================================================================
+
+    /**
+     * Adds a filename to the set.
+     *
+     * @param name  filename to add
+     * @return      true if the name was not in the set yet
+     */
+    boolean add(String name)
+    {
+        long key = keyOf(name);
+
+        if (key < 0) {
+            return others.add(name);
+        }
+
+        if (key == empty)
+        {
+            boolean added = !hasZero;
+            hasZero = true;
+            return added;
+        }
+
+        // Keep the table at most half full
+        if ((size + 1) * 2 > keys.length) {
+            grow();
+        }
+
+        int mask = keys.length - 1;
+
+        for (int i = slot(key, mask); ; i = (i + 1) & mask)
+        {
+            if (keys[i] == key) {
+                return false;
+            }
+
+            if (keys[i] == empty) {
+                keys[i] = key;
+                size++;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Checks if a filename is in the set.
+     *
+     * @param name  filename to check
+     * @return      true if it is in the set
+     */
+    boolean contains(String name)
+    {
+        long key = keyOf(name);
+
+        if (key < 0) {
+            return others.contains(name);
+        }
+
+        if (key == empty) {
+            return hasZero;
+        }
+
+        int mask = keys.length - 1;
+
+        for (int i = slot(key, mask); ; i = (i + 1) & mask)
+        {
+            if (keys[i] == key) {
+                return true;
+            }
+
+            if (keys[i] == empty) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Removes a filename from the set. The keys after it are shifted back
+     * so that lookups never need to skip over deleted slots.
+     *
+     * @param name  filename to remove
+     * @return      true if the name was in the set
+     */
+    boolean remove(String name)
+    {
+        long key = keyOf(name);
+
+        if (key < 0) {
+            return others.remove(name);
+        }
+
+        if (key == empty)
+        {
+            boolean removed = hasZero;
+            hasZero = false;
+            return removed;
+        }
+
+        int mask = keys.length - 1;
+        int gap = slot(key, mask);
+
+        // Find the key
+        while (keys[gap] != key)
+        {
+            if (keys[gap] == empty) {
+                return false;
+            }
+
+            gap = (gap + 1) & mask;
+        }
+
+        // Move back every following key whose probe passes over the gap
+        for (int i = (gap + 1) & mask; keys[i] != empty; i = (i + 1) & mask)
+        {
+            int home = slot(keys[i], mask);
+            boolean reachable = gap <= i ? gap < home && home <= i : gap < home || home <= i;
+
+            if (!reachable) {
+                keys[gap] = keys[i];
+                gap = i;
+            }
+        }
+
+        keys[gap] = empty;
+        size--;
+        return true;
+    }
+
+    /**
+     * Adds the key of every filename in the set to a filter. Names kept as
+     * strings have no key and are left out.
+     *
+     * @param filter  filter to add to
+     */
+    void addKeysTo(StashFilter filter)
+    {
+        for (long key : keys) {
+            if (key != empty) {
+                filter.add(key);
+            }
+        }
+
+        if (hasZero) {
+            filter.add(empty);
+        }
+    }
+
+    /**
+     * @return  number of filenames in the set
+     */
+    int size() { return size + (hasZero ? 1 : 0) + others.size(); }
+
+    /**
+     * Empties the set.
+     */
+    void clear()
+    {
+        keys = new long[initialCapacity];
+        size = 0;
+        hasZero = false;
+        others.clear();
+    }
+
+    //==================================================================================================================
+    // Helper Methods
+    //==================================================================================================================
+
+    /**
+     * Turns a filename into its key without creating any strings.
+     *
+     * @param name  filename
+     * @return      key of the file, or -1 if the name has to be kept as it is
+     */
+    static long keyOf(String name)
+    {
+        SubmissionName parser = SubmissionName.forThread();
+
+        if (!parser.parse(name) || parser.getId() > maxId) {
+            return -1;
+        }
+
+        // Fingerprint the artist straight from the filename
+        int hash = 0;
+
+        for (int i = parser.getArtistStart(); i < parser.getArtistEnd(); i++) {
+            hash = 31 * hash + name.charAt(i);
+        }
+
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+
+        return parser.getId() << artistBits | (hash & ((1 << artistBits) - 1));
+    }
+
+    /**
+     * Picks the first slot to probe for a key.
+     */
+    private static int slot(long key, int mask)
+    {
+        key ^= key >>> 33;
+        key *= 0xFF51AFD7ED558CCDL;
+        key ^= key >>> 33;
+
+        return (int) key & mask;
+    }
+
+    /**
+     * Doubles the table and puts every key back in.
+     */
+    private void grow()
+    {
+        long[] old = keys;
+        keys = new long[old.length * 2];
+        int mask = keys.length - 1;
+
+        for (long key : old)
+        {
+            if (key == empty) {
+                continue;
+            }
+
+            int i = slot(key, mask);
+
+            while (keys[i] != empty) {
+                i = (i + 1) & mask;
+            }
+
+            keys[i] = key;
+        }
+    }
+}
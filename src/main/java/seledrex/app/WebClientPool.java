@@ -0,0 +1,149 @@
+package seledrex.app;
+
+//======================================================================================================================
+// Imports
+//======================================================================================================================
+
+import com.gargoylesoftware.htmlunit.CookieManager;
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.util.Cookie;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+//======================================================================================================================
+// Web Client Pool
+//======================================================================================================================
+
+/**
+ * Web clients shared by the workers of a download. A client is only made
+ * when every existing one is busy, so there are never more clients than
+ * workers, and each client keeps its open connections from one submission
+ * to the next. All the clients share one cookie manager, filled once with
+ * the session cookies of the logged in client, so nothing is read from
+ * disk per submission and a cookie the site changes is seen by every
+ * client. The clients are closed when the download ends.
+ *
+ * @author Eric Auster
+ */
+class WebClientPool
+{
+    //==================================================================================================================
+    // Properties
+    //==================================================================================================================
+
+    private static final int timeout = 30000; // Connection and read timeout, in ms
+
+    private final CookieManager cookies; // Session shared by every client
+    private final ConcurrentLinkedQueue<WebClient> idle; // Clients not in use
+    private final List<WebClient> clients; // Every client made, to close them
+    private final AtomicLong acquired; // Clients handed out
+    private final AtomicLong created; // Clients made
+    private final AtomicLong setupNanos; // Time spent handing out clients
+    private volatile boolean closed;
+
+    //==================================================================================================================
+    // Constructor
+    //==================================================================================================================
+
+    /**
+     * Creates an empty pool.
+     *
+     * @param session  cookies of the logged in session
+     */
+    WebClientPool(Set<Cookie> session)
+    {
+        this.cookies = new CookieManager();
+        this.cookies.setCookiesEnabled(true);
+
+        for (Cookie cookie : session) {
+            this.cookies.addCookie(cookie);
+        }
+
+        this.idle = new ConcurrentLinkedQueue<WebClient>();
+        this.clients = new ArrayList<WebClient>();
+        this.acquired = new AtomicLong();
+        this.created = new AtomicLong();
+        this.setupNanos = new AtomicLong();
+    }
+
+    //==================================================================================================================
+    // Methods
+    //==================================================================================================================
+
+    /**
+     * Hands out a client that nobody else is using, making one if needed.
+     *
+     * @return  client to give back with {@link #release}
+     */
+    WebClient acquire()
+    {
+        long start = System.nanoTime();
+        WebClient client = idle.poll();
+
+        // Every client is busy, so make another
+        if (client == null)
+        {
+            client = new WebClient();
+            client.getOptions().setCssEnabled(false);
+            client.getOptions().setJavaScriptEnabled(false);
+            client.getOptions().setTimeout(timeout);
+            client.getOptions().setHistoryPageCacheLimit(0);
+            client.setCookieManager(cookies);
+            created.incrementAndGet();
+
+            synchronized (clients) {
+                clients.add(client);
+            }
+        }
+
+        acquired.incrementAndGet();
+        setupNanos.addAndGet(System.nanoTime() - start);
+
+        return client;
+    }
+
+    /**
+     * Gives a client back, for the next worker to use.
+     *
+     * @param client  client from {@link #acquire}
+     */
+    void release(WebClient client)
+    {
+        // Closing the client would also close its connections, so it is only closed with the pool
+        if (!closed) {
+            idle.add(client);
+        }
+    }
+
+    /**
+     * Closes every client. Clients still in use are closed as well, so
+     * this should only be called once the workers are done.
+     */
+    void close()
+    {
+        closed = true;
+        idle.clear();
+
+        synchronized (clients) {
+            for (WebClient client : clients) {
+                client.close();
+            }
+        }
+    }
+
+    /**
+     * @return  how many clients were made and how long handing them out took
+     */
+    String report()
+    {
+        long count = acquired.get();
+        double millis = setupNanos.get() / 1000000.0;
+
+        return String.format(Locale.ROOT, "Web clients: %d made for %d submissions, setup %.1f ms (%.2f ms each)\n",
+                created.get(), count, millis, count > 0 ? millis / count : 0.0);
+    }
+}
@@ -0,0 +1,136 @@
+package seledrex.app;
+
+//======================================================================================================================
+// Imports
+//======================================================================================================================
+
+import junit.framework.TestCase;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+//======================================================================================================================
+// Content Hash Test
+//======================================================================================================================
+
+/**
+ * Tests for {@link ContentHash}. The hash must match the reference xxHash64
+ * with seed 0, however the bytes are split up and whichever kind of buffer
+ * they come in.
+ *
+ * @author Eric Auster
+ */
+public class ContentHashTest extends TestCase
+{
+    //==================================================================================================================
+    // Tests
+    //==================================================================================================================
+
+    public void testReferenceVectors()
+    {
+        assertEquals(0xEF46DB3751D8E999L, hash(""));
+        assertEquals(0xD24EC4F1A98C6E5BL, hash("a"));
+        assertEquals(0x44BC2CF5AD770999L, hash("abc"));
+
+        // Long enough to go through the four accumulators
+        assertEquals(0x0B242D361FDA71BCL, hash("The quick brown fox jumps over the lazy dog"));
+    }
+
+    public void testSplitUpdates()
+    {
+        byte[] bytes = random(1000);
+        long whole = hashOf(bytes);
+
+        // Pieces of every size up to two stripes, so stripes are topped up from every position
+        for (int piece = 1; piece <= 64; piece++)
+        {
+            ContentHash hash = new ContentHash();
+
+            for (int offset = 0; offset < bytes.length; offset += piece) {
+                hash.update(bytes, offset, Math.min(piece, bytes.length - offset));
+            }
+
+            assertEquals("pieces of " + piece, whole, hash.value());
+        }
+    }
+
+    public void testBufferMatchesArray()
+    {
+        byte[] bytes = random(1000);
+        long whole = hashOf(bytes);
+
+        for (int piece = 1; piece <= 64; piece++)
+        {
+            ContentHash heap = new ContentHash();
+            ContentHash direct = new ContentHash();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(piece);
+
+            for (int offset = 0; offset < bytes.length; offset += piece)
+            {
+                int length = Math.min(piece, bytes.length - offset);
+                heap.update(ByteBuffer.wrap(bytes, offset, length));
+
+                buffer.clear();
+                buffer.put(bytes, offset, length);
+                buffer.flip();
+                direct.update(buffer);
+
+                // Left in place so the same bytes can be written out
+                assertEquals(0, buffer.position());
+            }
+
+            assertEquals("pieces of " + piece, whole, heap.value());
+            assertEquals("pieces of " + piece, whole, direct.value());
+        }
+    }
+
+    public void testValueCanBeTakenMidway()
+    {
+        byte[] bytes = random(100);
+        ContentHash hash = new ContentHash();
+
+        hash.update(bytes, 0, 40);
+        assertEquals(hashOf(Arrays.copyOf(bytes, 40)), hash.value());
+        hash.update(bytes, 40, 60);
+        assertEquals(hashOf(bytes), hash.value());
+    }
+
+    public void testFile() throws Exception
+    {
+        byte[] bytes = random(200000);
+        File file = File.createTempFile("hash", ".bin");
+
+        try {
+            Files.write(file.toPath(), bytes);
+            assertEquals(hashOf(bytes), ContentHash.of(file.toPath()));
+        } finally {
+            file.delete();
+        }
+    }
+
+    //==================================================================================================================
+    // Helper Methods
+    //==================================================================================================================
+
+    private static long hash(String text)
+    {
+        return hashOf(text.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static long hashOf(byte[] bytes)
+    {
+        ContentHash hash = new ContentHash();
+        hash.update(bytes, 0, bytes.length);
+        return hash.value();
+    }
+
+    private static byte[] random(int length)
+    {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+}
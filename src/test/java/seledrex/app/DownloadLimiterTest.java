@@ -0,0 +1,188 @@
+package seledrex.app;
+
+//======================================================================================================================
+// Imports
+//======================================================================================================================
+
+import junit.framework.TestCase;
+import org.apache.http.conn.ConnectTimeoutException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+//======================================================================================================================
+// Download Limiter Test
+//======================================================================================================================
+
+/**
+ * Tests for {@link DownloadLimiter}. Each test drops the limit at most
+ * once, since the limiter ignores drops for a few seconds after one.
+ *
+ * @author Eric Auster
+ */
+public class DownloadLimiterTest extends TestCase
+{
+    //==================================================================================================================
+    // Properties
+    //==================================================================================================================
+
+    private static final long millis = 1000000L; // Nanoseconds in a millisecond
+
+    private List<String> reasons; // Reasons passed to the listener, in order
+
+    //==================================================================================================================
+    // Setup
+    //==================================================================================================================
+
+    @Override
+    protected void setUp()
+    {
+        reasons = new ArrayList<String>();
+    }
+
+    //==================================================================================================================
+    // Tests
+    //==================================================================================================================
+
+    public void testRaisedAfterLimitFastPages()
+    {
+        DownloadLimiter limiter = limiter(2, 1, 16);
+
+        limiter.succeeded(100 * millis);
+        assertEquals(2, limiter.getLimit());
+        limiter.succeeded(100 * millis);
+        assertEquals(3, limiter.getLimit());
+
+        // The next raise takes three fast pages
+        limiter.succeeded(100 * millis);
+        limiter.succeeded(100 * millis);
+        assertEquals(3, limiter.getLimit());
+        limiter.succeeded(100 * millis);
+        assertEquals(4, limiter.getLimit());
+        assertEquals(2, reasons.size());
+    }
+
+    public void testNotRaisedAboveMax()
+    {
+        DownloadLimiter limiter = limiter(3, 1, 3);
+
+        for (int i = 0; i < 20; i++) {
+            limiter.succeeded(100 * millis);
+        }
+
+        assertEquals(3, limiter.getLimit());
+        assertTrue(reasons.isEmpty());
+    }
+
+    public void testTimeoutHalves()
+    {
+        DownloadLimiter limiter = limiter(8, 1, 16);
+
+        limiter.failed(new SocketTimeoutException());
+        assertEquals(4, limiter.getLimit());
+        assertEquals("halved after timeout", reasons.get(0));
+
+        // Failures right after a drop were already in flight
+        limiter.failed(new SocketTimeoutException());
+        assertEquals(4, limiter.getLimit());
+        assertEquals(1, reasons.size());
+    }
+
+    public void testConnectTimeoutHalves()
+    {
+        DownloadLimiter limiter = limiter(8, 1, 16);
+
+        limiter.failed(new ConnectTimeoutException());
+        assertEquals(4, limiter.getLimit());
+    }
+
+    public void testWrappedTimeoutHalves()
+    {
+        DownloadLimiter limiter = limiter(8, 1, 16);
+
+        limiter.failed(new RuntimeException(new IOException(new SocketTimeoutException())));
+        assertEquals(4, limiter.getLimit());
+    }
+
+    public void testServerErrorsHalve() throws Exception
+    {
+        DownloadLimiter limiter = limiter(8, 1, 16);
+        limiter.failed(new BinaryFetcher.StatusException(503, new URL("http://example.com/")));
+        assertEquals(4, limiter.getLimit());
+
+        limiter = limiter(8, 1, 16);
+        limiter.failed(new BinaryFetcher.StatusException(429, new URL("http://example.com/")));
+        assertEquals(4, limiter.getLimit());
+    }
+
+    public void testOtherFailuresIgnored() throws Exception
+    {
+        DownloadLimiter limiter = limiter(8, 1, 16);
+
+        limiter.failed(new BinaryFetcher.StatusException(404, new URL("http://example.com/")));
+        limiter.failed(new IOException("connection reset"));
+        assertEquals(8, limiter.getLimit());
+        assertTrue(reasons.isEmpty());
+    }
+
+    public void testNotHalvedBelowMin()
+    {
+        DownloadLimiter limiter = limiter(3, 2, 16);
+
+        limiter.failed(new SocketTimeoutException());
+        assertEquals(2, limiter.getLimit());
+    }
+
+    public void testSlowPagesDropByOne()
+    {
+        DownloadLimiter limiter = limiter(4, 1, 16);
+
+        // The average climbs past three times the fastest page on the third one
+        limiter.succeeded(100 * millis);
+        limiter.succeeded(1000 * millis);
+        assertEquals(4, limiter.getLimit());
+        limiter.succeeded(1000 * millis);
+        assertEquals(3, limiter.getLimit());
+        assertTrue(reasons.get(0).startsWith("pages slowed to"));
+    }
+
+    public void testFastOutlierForgotten()
+    {
+        DownloadLimiter limiter = limiter(4, 1, 16);
+
+        // One page far faster than the rest makes every other page look slow
+        limiter.succeeded(10 * millis);
+
+        for (int i = 0; i < 63; i++) {
+            limiter.succeeded(100 * millis);
+        }
+
+        assertEquals(3, limiter.getLimit());
+
+        // Once it is out of the window, the usual pages count as fast again
+        for (int i = 0; i < 3; i++) {
+            limiter.succeeded(100 * millis);
+        }
+
+        assertEquals(4, limiter.getLimit());
+    }
+
+    //==================================================================================================================
+    // Helper Methods
+    //==================================================================================================================
+
+    /**
+     * Creates a limiter that records the reason for every change.
+     */
+    private DownloadLimiter limiter(int initial, int minLimit, int maxLimit)
+    {
+        return new DownloadLimiter(initial, minLimit, maxLimit, new DownloadLimiter.Listener() {
+            @Override
+            public void limitChanged(int limit, String reason) {
+                reasons.add(reason);
+            }
+        });
+    }
+}
@@ -0,0 +1,149 @@
+package seledrex.app;
+
+//======================================================================================================================
+// Imports
+//======================================================================================================================
+
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+
+//======================================================================================================================
+// File Transfer Test
+//======================================================================================================================
+
+/**
+ * Tests for {@link FileTransfer}, with the input folder and the stash in
+ * one temporary folder, so they share a file store.
+ *
+ * @author Eric Auster
+ */
+public class FileTransferTest extends TestCase
+{
+    //==================================================================================================================
+    // Properties
+    //==================================================================================================================
+
+    private File root; // Temporary folder holding both
+    private Path input; // Input folder
+    private Path stash; // Stash folder
+
+    //==================================================================================================================
+    // Setup
+    //==================================================================================================================
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        root = Files.createTempDirectory("transfer").toFile();
+        input = Files.createDirectory(new File(root, "input").toPath());
+        stash = Files.createDirectory(new File(root, "stash").toPath());
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        FileUtils.deleteDirectory(root);
+    }
+
+    //==================================================================================================================
+    // Tests
+    //==================================================================================================================
+
+    public void testEveryModePutsTheFile() throws Exception
+    {
+        for (FileTransfer.Mode mode : FileTransfer.Mode.values())
+        {
+            Path source = write(input.resolve("1." + mode + "_a.png"), "artwork");
+            Path target = stash.resolve(source.getFileName());
+            FileTransfer.Result result = new FileTransfer(mode).transfer(source, target);
+
+            assertEquals(mode, result.mode);
+            assertEquals(7, result.size);
+            assertEquals("artwork", read(target));
+            assertEquals(mode != FileTransfer.Mode.MOVE, Files.exists(source));
+        }
+    }
+
+    public void testMoveKeepsExistingFile() throws Exception
+    {
+        // Put in the stash by another program after the directory was listed
+        Path source = write(input.resolve("1.art_a.png"), "new download");
+        Path target = write(stash.resolve("1.art_a.png"), "already in stash");
+
+        try {
+            new FileTransfer(FileTransfer.Mode.MOVE).transfer(source, target);
+            fail("moved over an existing file");
+        } catch (FileAlreadyExistsException e) {
+            // Expected
+        }
+
+        assertEquals("already in stash", read(target));
+        assertEquals("new download", read(source));
+    }
+
+    public void testNoModeReplacesExistingFile() throws Exception
+    {
+        for (FileTransfer.Mode mode : FileTransfer.Mode.values())
+        {
+            Path source = write(input.resolve("1." + mode + "_a.png"), "new download");
+            Path target = write(stash.resolve(source.getFileName()), "already in stash");
+
+            try {
+                new FileTransfer(mode).transfer(source, target);
+                fail(mode + " replaced an existing file");
+            } catch (FileAlreadyExistsException e) {
+                // Expected
+            }
+
+            assertEquals(mode.toString(), "already in stash", read(target));
+            assertTrue(Files.exists(source));
+        }
+    }
+
+    public void testMissingFileKeepsMode() throws Exception
+    {
+        FileTransfer transfer = new FileTransfer(null);
+
+        try {
+            transfer.transfer(input.resolve("1.art_gone.png"), stash.resolve("1.art_gone.png"));
+            fail("transferred a missing file");
+        } catch (NoSuchFileException e) {
+            // Expected
+        }
+
+        // One missing file does not change the mode of the next
+        Path source = write(input.resolve("2.art_b.png"), "artwork");
+        assertEquals(FileTransfer.Mode.LINK, transfer.transfer(source, stash.resolve("2.art_b.png")).mode);
+        assertFalse(Files.exists(stash.resolve("1.art_gone.png")));
+    }
+
+    public void testCopyHashesBytes() throws Exception
+    {
+        Path source = write(input.resolve("1.art_a.png"), "artwork");
+        FileTransfer.Result result = new FileTransfer(FileTransfer.Mode.COPY).transfer(source,
+                stash.resolve("1.art_a.png"));
+
+        assertTrue(result.hashed);
+        assertEquals(ContentHash.of(source), result.hash);
+    }
+
+    //==================================================================================================================
+    // Helper Methods
+    //==================================================================================================================
+
+    private static Path write(Path file, String text) throws Exception
+    {
+        return Files.write(file, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String read(Path file) throws Exception
+    {
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,145 @@
+package seledrex.app;
+
+//======================================================================================================================
+// Imports
+//======================================================================================================================
+
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+//======================================================================================================================
+// Sort Journal Test
+//======================================================================================================================
+
+/**
+ * Tests for {@link SortJournal}, reopened the way an interrupted sort is
+ * resumed.
+ *
+ * @author Eric Auster
+ */
+public class SortJournalTest extends TestCase
+{
+    //==================================================================================================================
+    // Properties
+    //==================================================================================================================
+
+    private File root; // Temporary folder holding both
+    private File stash; // Stash folder
+    private Path input; // Input folder
+
+    //==================================================================================================================
+    // Setup
+    //==================================================================================================================
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        root = Files.createTempDirectory("journal").toFile();
+        stash = new File(root, "stash");
+        stash.mkdir();
+        input = Files.createDirectory(new File(root, "input").toPath());
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        FileUtils.deleteDirectory(root);
+    }
+
+    //==================================================================================================================
+    // Tests
+    //==================================================================================================================
+
+    public void testResumeSkipsFinishedFiles() throws Exception
+    {
+        Path one = write("1.art_one.png", 10);
+        Path two = write("2.art_two.png", 20);
+        SortJournal journal = new SortJournal(stash);
+        journal.record(one);
+        journal.close();
+
+        journal = new SortJournal(stash);
+        assertEquals(1, journal.resumed());
+        assertTrue(journal.isDone(one));
+        assertFalse(journal.isDone(two));
+        journal.close();
+    }
+
+    public void testChangedFileIsSortedAgain() throws Exception
+    {
+        Path one = write("1.art_one.png", 10);
+        Path two = write("2.art_two.png", 20);
+        SortJournal journal = new SortJournal(stash);
+        journal.record(one);
+        journal.record(two);
+        journal.close();
+
+        // Replaced under the same name, by a different size or at a different time
+        write("1.art_one.png", 11);
+        Files.setLastModifiedTime(two, FileTime.fromMillis(Files.getLastModifiedTime(two).toMillis() - 60000));
+
+        journal = new SortJournal(stash);
+        assertFalse(journal.isDone(one));
+        assertFalse(journal.isDone(two));
+        journal.close();
+    }
+
+    public void testMovedFileIsNotRecorded() throws Exception
+    {
+        Path one = write("1.art_one.png", 10);
+        Files.delete(one);
+
+        SortJournal journal = new SortJournal(stash);
+        journal.record(one);
+        journal.close();
+
+        assertEquals(0, new SortJournal(stash).resumed());
+    }
+
+    public void testCompact() throws Exception
+    {
+        Path one = write("1.art_one.png", 10);
+        SortJournal journal = new SortJournal(stash);
+        journal.record(one);
+        journal.record(one);
+        journal.fail();
+        journal.compact();
+
+        // Kept with one line per file while something failed
+        File file = new File(stash, SortJournal.filename);
+        assertEquals(1, Files.readAllLines(file.toPath()).size());
+
+        journal = new SortJournal(stash);
+        assertTrue(journal.isDone(one));
+        journal.compact();
+        assertFalse(file.exists());
+    }
+
+    public void testUnreadableLinesIgnored() throws Exception
+    {
+        Path one = write("1.art_one.png", 10);
+        Files.write(new File(stash, SortJournal.filename).toPath(),
+                (one.toAbsolutePath() + "\n10\t").getBytes("UTF-8"));
+
+        SortJournal journal = new SortJournal(stash);
+        assertEquals(0, journal.resumed());
+        assertFalse(journal.isDone(one));
+        journal.close();
+    }
+
+    //==================================================================================================================
+    // Helper Methods
+    //==================================================================================================================
+
+    /**
+     * Writes a file of the given size into the input folder.
+     */
+    private Path write(String name, int size) throws Exception
+    {
+        return Files.write(input.resolve(name), new byte[size]);
+    }
+}
@@ -0,0 +1,117 @@
+package seledrex.app;
+
+//======================================================================================================================
+// Imports
+//======================================================================================================================
+
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+//======================================================================================================================
+// Stash Directory Cache Test
+//======================================================================================================================
+
+/**
+ * Tests for {@link StashDirectoryCache}, mostly how it tells the changes
+ * the application made itself apart from those made by other programs.
+ *
+ * @author Eric Auster
+ */
+public class StashDirectoryCacheTest extends TestCase
+{
+    //==================================================================================================================
+    // Properties
+    //==================================================================================================================
+
+    private File stash; // Temporary stash folder
+    private StashDirectoryCache cache;
+
+    //==================================================================================================================
+    // Setup
+    //==================================================================================================================
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        stash = Files.createTempDirectory("stash").toFile();
+        new File(stash, "alice").mkdir();
+        Files.write(new File(stash, "alice/1.alice_one.png").toPath(), new byte[1]);
+        cache = new StashDirectoryCache(stash, null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        FileUtils.deleteDirectory(stash);
+    }
+
+    //==================================================================================================================
+    // Tests
+    //==================================================================================================================
+
+    public void testClaim()
+    {
+        assertFalse(cache.claim("alice", "1.alice_one.png"));
+        assertTrue(cache.claim("alice", "2.alice_two.png"));
+        assertFalse(cache.claim("alice", "2.alice_two.png"));
+
+        cache.release("alice", "2.alice_two.png");
+        assertTrue(cache.claim("alice", "2.alice_two.png"));
+    }
+
+    public void testClaimedNamesAreNotAdded()
+    {
+        cache.claim("alice", "2.alice_two.png");
+        String[] names = {"1.alice_one.png", "2.alice_two.png", "3.alice_three.png"};
+
+        // Only the file another program put there is new
+        assertEquals(Arrays.asList("3.alice_three.png"), cache.added("alice", names,
+                Collections.<String>emptySet()));
+        assertTrue(cache.added("alice", names, Collections.<String>emptySet()).isEmpty());
+    }
+
+    public void testUnlistedDirectoryUsesCreatedNames()
+    {
+        String[] names = {"1.bob_one.png", "2.bob_two.png"};
+
+        assertFalse(cache.isListed("bob"));
+        assertEquals(Arrays.asList("2.bob_two.png"), cache.added("bob", names,
+                new HashSet<String>(Arrays.asList("2.bob_two.png"))));
+
+        // Left to be listed when it is first needed
+        assertFalse(cache.isListed("bob"));
+    }
+
+    public void testRemoved()
+    {
+        cache.claim("alice", "2.alice_two.png");
+
+        // Deleted by another program
+        assertTrue(cache.removed("alice", "1.alice_one.png"));
+
+        // Released and deleted by the application itself
+        cache.release("alice", "2.alice_two.png");
+        assertFalse(cache.removed("alice", "2.alice_two.png"));
+
+        // Never listed, so it cannot be told apart
+        assertTrue(cache.removed("bob", "1.bob_one.png"));
+    }
+
+    public void testRemovedDirectoryDropsListings()
+    {
+        new File(stash, "alice/2017-05").mkdir();
+        cache.open("alice");
+        cache.open("alice/2017-05");
+        assertTrue(cache.isListed("alice"));
+        assertTrue(cache.isListed("alice/2017-05"));
+
+        cache.removed("", "alice");
+        assertFalse(cache.isListed("alice"));
+        assertFalse(cache.isListed("alice/2017-05"));
+    }
+}
@@ -0,0 +1,139 @@
+package seledrex.app;
+
+//======================================================================================================================
+// Imports
+//======================================================================================================================
+
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import java.io.File;
+import java.nio.file.Files;
+
+//======================================================================================================================
+// Stash Filter Test
+//======================================================================================================================
+
+/**
+ * Tests for {@link StashFilter}, each in a stash folder of its own.
+ *
+ * @author Eric Auster
+ */
+public class StashFilterTest extends TestCase
+{
+    //==================================================================================================================
+    // Properties
+    //==================================================================================================================
+
+    private File stash; // Temporary stash folder
+
+    //==================================================================================================================
+    // Setup
+    //==================================================================================================================
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        stash = Files.createTempDirectory("stash").toFile();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        FileUtils.deleteDirectory(stash);
+    }
+
+    //==================================================================================================================
+    // Tests
+    //==================================================================================================================
+
+    public void testAddedKeysAreFound() throws Exception
+    {
+        StashFilter filter = StashFilter.open(stash, 10000);
+
+        try {
+            for (long key = 0; key < 10000; key++) {
+                filter.add(key * 7919);
+                assertTrue(filter.mightContain(key * 7919));
+            }
+
+            // A no is always right, so no added key may be missing
+            for (long key = 0; key < 10000; key++) {
+                assertTrue(filter.mightContain(key * 7919));
+            }
+        } finally {
+            filter.close();
+        }
+    }
+
+    public void testFewFalsePositives() throws Exception
+    {
+        StashFilter filter = StashFilter.open(stash, 50000);
+        int positives = 0;
+
+        try {
+            for (long key = 0; key < 50000; key++) {
+                filter.add(key);
+            }
+
+            for (long key = 1000000; key < 1100000; key++) {
+                if (filter.mightContain(key)) {
+                    positives++;
+                }
+            }
+        } finally {
+            filter.close();
+        }
+
+        // About 1 in 100 at full capacity, and the filter is sized for twice the entries
+        assertTrue("false positives: " + positives, positives < 2000);
+    }
+
+    public void testKeptBetweenRuns() throws Exception
+    {
+        StashFilter filter = StashFilter.open(stash, 100);
+        filter.add(42);
+        long capacity = filter.getCapacity();
+        filter.close();
+
+        filter = StashFilter.open(stash, 100);
+
+        try {
+            assertEquals(capacity, filter.getCapacity());
+            assertTrue(filter.mightContain(42));
+        } finally {
+            filter.close();
+        }
+    }
+
+    public void testRebuiltWhenTooSmall() throws Exception
+    {
+        StashFilter filter = StashFilter.open(stash, 100);
+        filter.add(42);
+        filter.close();
+
+        filter = StashFilter.open(stash, 1000);
+
+        try {
+            assertEquals(2000, filter.getCapacity());
+            assertFalse(filter.mightContain(42));
+        } finally {
+            filter.close();
+        }
+    }
+
+    public void testKeysOfSubmissionSet() throws Exception
+    {
+        SubmissionSet set = new SubmissionSet();
+        set.add("1523456789.someartist_picture.png");
+        set.add("picture.png");
+
+        StashFilter filter = StashFilter.open(stash, set.size());
+
+        try {
+            set.addKeysTo(filter);
+            assertTrue(filter.mightContain(SubmissionSet.keyOf("1523456789.someartist_picture.png")));
+        } finally {
+            filter.close();
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package seledrex.app;
+
+//======================================================================================================================
+// Imports
+//======================================================================================================================
+
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+//======================================================================================================================
+// Stash Inventory Test
+//======================================================================================================================
+
+/**
+ * Tests for {@link StashInventory}, on a small stash made for each test.
+ *
+ * @author Eric Auster
+ */
+public class StashInventoryTest extends TestCase
+{
+    //==================================================================================================================
+    // Properties
+    //==================================================================================================================
+
+    private File stash; // Temporary stash folder
+    private StashInventory inventory;
+
+    //==================================================================================================================
+    // Setup
+    //==================================================================================================================
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        stash = Files.createTempDirectory("stash").toFile();
+        write("alice/1000000001.alice_one.png", 10);
+        write("alice/1000000002.alice_two.jpg", 20);
+        write("bob/1000000003.bob_three.png", 30);
+
+        StashIndex index = new StashIndex(stash);
+        index.refresh(1);
+        inventory = new StashInventory(stash);
+        inventory.seed(stash, index, null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        FileUtils.deleteDirectory(stash);
+    }
+
+    //==================================================================================================================
+    // Tests
+    //==================================================================================================================
+
+    public void testSeeded()
+    {
+        assertEquals(3, inventory.getFiles());
+        assertEquals(60, inventory.getBytes());
+        assertEquals(2, inventory.getArtistCount());
+        assertEquals(1000000001L, inventory.get("alice").getOldest());
+        assertEquals(1000000002L, inventory.get("alice").getNewest());
+        assertEquals(1, inventory.get("alice").getCount("jpg"));
+    }
+
+    public void testSettle() throws Exception
+    {
+        inventory.expect("alice/1000000004.alice_four.png");
+        write("alice/1000000004.alice_four.png", 40);
+        inventory.settle("alice/1000000004.alice_four.png", "alice", 40);
+
+        assertEquals(3, inventory.get("alice").getFiles());
+        assertEquals(4, inventory.getFiles());
+        assertEquals(100, inventory.getBytes());
+    }
+
+    public void testRecountAfterDelete() throws Exception
+    {
+        new File(stash, "alice/1000000001.alice_one.png").delete();
+        inventory.recount(stash, "alice");
+
+        assertEquals(1, inventory.get("alice").getFiles());
+        assertEquals(1000000002L, inventory.get("alice").getOldest());
+        assertEquals(2, inventory.getFiles());
+        assertEquals(50, inventory.getBytes());
+    }
+
+    public void testRecountSkipsExpectedFiles() throws Exception
+    {
+        // Already on disk, but the sort has not counted it yet
+        inventory.expect("alice/1000000004.alice_four.png");
+        write("alice/1000000004.alice_four.png", 40);
+        inventory.recount(stash, "alice");
+        assertEquals(2, inventory.get("alice").getFiles());
+
+        // Counted once when the sort gets to it
+        inventory.settle("alice/1000000004.alice_four.png", "alice", 40);
+        assertEquals(3, inventory.get("alice").getFiles());
+        assertEquals(4, inventory.getFiles());
+        assertEquals(100, inventory.getBytes());
+    }
+
+    public void testRecountCountsAbandonedName() throws Exception
+    {
+        // A file another program put there under a name the sort gave up on
+        inventory.expect("alice/1000000004.alice_four.png");
+        inventory.abandon("alice/1000000004.alice_four.png");
+        write("alice/1000000004.alice_four.png", 40);
+        inventory.recount(stash, "alice");
+
+        assertEquals(3, inventory.get("alice").getFiles());
+    }
+
+    public void testRecountOfDeletedArtist() throws Exception
+    {
+        FileUtils.deleteDirectory(new File(stash, "bob"));
+        inventory.recount(stash, "bob");
+
+        assertNull(inventory.get("bob"));
+        assertEquals(1, inventory.getArtistCount());
+        assertEquals(2, inventory.getFiles());
+        assertEquals(30, inventory.getBytes());
+    }
+
+    public void testRecountIncludesBuckets() throws Exception
+    {
+        write("alice/2017-05/1000000005.alice_five.png", 50);
+        inventory.recount(stash, "alice");
+
+        assertEquals(3, inventory.get("alice").getFiles());
+        assertEquals(110, inventory.getBytes());
+    }
+
+    public void testConcurrentAddsKeepTotals() throws Exception
+    {
+        Thread[] threads = new Thread[4];
+
+        for (int t = 0; t < threads.length; t++)
+        {
+            final int offset = t * 1000;
+
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < 1000; i++) {
+                        inventory.add("carol", (1100000000L + offset + i) + ".carol_x.png", 1);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+
+        // Recounting another artist at the same time must not lose any of them
+        for (int i = 0; i < 50; i++) {
+            inventory.recount(stash, "bob");
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(4003, inventory.getFiles());
+        assertEquals(4060, inventory.getBytes());
+        assertEquals(4000, inventory.get("carol").getFiles());
+    }
+
+    //==================================================================================================================
+    // Helper Methods
+    //==================================================================================================================
+
+    /**
+     * Writes a file of the given size at a path inside the stash.
+     */
+    private void write(String path, int size) throws IOException
+    {
+        File file = new File(stash, path);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), new byte[size]);
+    }
+}
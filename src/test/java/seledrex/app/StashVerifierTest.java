@@ -0,0 +1,179 @@
+package seledrex.app;
+
+//======================================================================================================================
+// Imports
+//======================================================================================================================
+
+import junit.framework.TestCase;
+import java.util.Arrays;
+
+//======================================================================================================================
+// Stash Verifier Test
+//======================================================================================================================
+
+/**
+ * Tests for {@link StashVerifier#inspect}, on made up files that are only
+ * as long as their checks need. The start and end of each file are cut out
+ * the same way the verifier reads them from disk.
+ *
+ * @author Eric Auster
+ */
+public class StashVerifierTest extends TestCase
+{
+    //==================================================================================================================
+    // Tests
+    //==================================================================================================================
+
+    public void testJpeg()
+    {
+        assertNull(inspect("jpg", bytes(0xFF, 0xD8, 0xFF, 0xE0, 1, 2, 3, 0xFF, 0xD9)));
+        assertNull(inspect("jpeg", bytes(0xFF, 0xD8, 0xFF, 0xE0, 1, 2, 3, 0xFF, 0xD9)));
+        assertEquals(StashVerifier.header, inspect("jpg", bytes(0x89, 'P', 'N', 'G', 0xFF, 0xD9)));
+        assertEquals(StashVerifier.truncated, inspect("jpg", bytes(0xFF, 0xD8, 0xFF, 0xE0, 1, 2, 3)));
+    }
+
+    public void testPng()
+    {
+        int[] start = {0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A};
+
+        assertNull(inspect("png", join(start, bytes(1, 2, 3, 'I', 'E', 'N', 'D', 0xAE, 0x42, 0x60, 0x82))));
+        assertEquals(StashVerifier.truncated, inspect("png", join(start, bytes(1, 2, 3))));
+        assertEquals(StashVerifier.header, inspect("png", bytes(0x89, 'P', 'N', 'G')));
+    }
+
+    public void testGif()
+    {
+        assertNull(inspect("gif", bytes('G', 'I', 'F', '8', '9', 'a', 1, 2, 0x3B)));
+        assertNull(inspect("gif", bytes('G', 'I', 'F', '8', '9', 'a', 1, 2, 0x3B, 0, 0)));
+        assertEquals(StashVerifier.truncated, inspect("gif", bytes('G', 'I', 'F', '8', '9', 'a', 1, 2)));
+        assertEquals(StashVerifier.header, inspect("gif", bytes('G', 'I', 'F', '7', 0x3B)));
+    }
+
+    public void testSwf()
+    {
+        // Uncompressed files state their own length
+        assertNull(inspect("swf", bytes('F', 'W', 'S', 10, 10, 0, 0, 0, 1, 2)));
+        assertEquals(StashVerifier.truncated, inspect("swf", bytes('F', 'W', 'S', 10, 11, 0, 0, 0, 1, 2)));
+        assertNull(inspect("swf", bytes('C', 'W', 'S', 10, 0, 1, 0, 0)));
+        assertNull(inspect("swf", bytes('Z', 'W', 'S', 10, 0, 1, 0, 0)));
+        assertEquals(StashVerifier.header, inspect("swf", bytes('X', 'W', 'S', 10)));
+    }
+
+    public void testWav()
+    {
+        // The RIFF length counts everything after the first eight bytes
+        assertNull(inspect("wav", bytes('R', 'I', 'F', 'F', 8, 0, 0, 0, 'W', 'A', 'V', 'E', 1, 2, 3, 4)));
+        assertEquals(StashVerifier.truncated,
+                inspect("wav", bytes('R', 'I', 'F', 'F', 9, 0, 0, 0, 'W', 'A', 'V', 'E', 1, 2, 3, 4)));
+        assertEquals(StashVerifier.header,
+                inspect("wav", bytes('R', 'I', 'F', 'F', 8, 0, 0, 0, 'A', 'V', 'I', ' ', 1, 2, 3, 4)));
+    }
+
+    public void testMp3()
+    {
+        assertNull(inspect("mp3", bytes('I', 'D', '3', 4, 0)));
+        assertNull(inspect("mp3", bytes(0xFF, 0xFB, 0x90, 0x64)));
+        assertNull(inspect("mpeg", bytes(0x00, 0x00, 0x01, 0xBA, 0x44)));
+        assertEquals(StashVerifier.header, inspect("mp3", bytes('<', 'h', 't', 'm', 'l')));
+    }
+
+    public void testMidiAndDocx()
+    {
+        assertNull(inspect("mid", bytes('M', 'T', 'h', 'd', 0, 0, 0, 6)));
+        assertEquals(StashVerifier.header, inspect("mid", bytes('R', 'I', 'F', 'F')));
+
+        assertNull(inspect("docx", bytes('P', 'K', 0x03, 0x04, 1, 2, 'P', 'K', 0x05, 0x06, 0, 0)));
+        assertEquals(StashVerifier.truncated, inspect("docx", bytes('P', 'K', 0x03, 0x04, 1, 2, 3)));
+        assertEquals(StashVerifier.header, inspect("docx", bytes('d', 'o', 'c')));
+    }
+
+    public void testEndFoundInLongFile()
+    {
+        // Only the last bytes are read, so the marker has to be near the end
+        int[] data = new int[10000];
+        data[0] = 0xFF;
+        data[1] = 0xD8;
+        data[2] = 0xFF;
+        data[9998] = 0xFF;
+        data[9999] = 0xD9;
+        assertNull(inspect("jpg", bytes(data)));
+
+        // Other data may follow the end of the image
+        data[8000] = 0xFF;
+        data[8001] = 0xD9;
+        data[9999] = 0;
+        assertNull(inspect("jpg", bytes(data)));
+
+        data[8000] = 0;
+        data[2000] = 0xFF;
+        data[2001] = 0xD9;
+        assertEquals(StashVerifier.truncated, inspect("jpg", bytes(data)));
+    }
+
+    public void testZipCommentAfterEnd()
+    {
+        // The end of central directory record can be followed by a comment of up to 65535 bytes
+        int[] data = new int[80000];
+        data[0] = 'P';
+        data[1] = 'K';
+        data[2] = 0x03;
+        data[3] = 0x04;
+        data[80000 - 22 - 65535] = 'P';
+        data[80000 - 22 - 65535 + 1] = 'K';
+        data[80000 - 22 - 65535 + 2] = 0x05;
+        data[80000 - 22 - 65535 + 3] = 0x06;
+        assertNull(inspect("docx", bytes(data)));
+
+        data[80000 - 22 - 65535] = 0;
+        assertEquals(StashVerifier.truncated, inspect("docx", bytes(data)));
+    }
+
+    public void testShortFiles()
+    {
+        // Fewer bytes than the signature cannot match it
+        assertEquals(StashVerifier.header, inspect("png", bytes(0x89, 'P')));
+        assertEquals(StashVerifier.header, inspect("wav", bytes('R', 'I', 'F', 'F', 8, 0)));
+    }
+
+    public void testOtherFormatsPass()
+    {
+        assertNull(inspect("txt", bytes('h', 'i')));
+        assertNull(inspect("unknown", bytes(0xFF, 0xD8)));
+    }
+
+    //==================================================================================================================
+    // Helper Methods
+    //==================================================================================================================
+
+    /**
+     * Cuts the start and end out of a file and inspects them.
+     */
+    private static String inspect(String extension, byte[] file)
+    {
+        int headRead = Math.min(16, file.length);
+        int tailLength = StashVerifier.tailLengthOf(extension);
+        int tailRead = Math.min(tailLength, file.length);
+        byte[] head = Arrays.copyOf(file, 16);
+        byte[] tail = Arrays.copyOf(Arrays.copyOfRange(file, file.length - tailRead, file.length), tailLength);
+
+        return StashVerifier.inspect(extension, head, headRead, tail, tailRead, file.length);
+    }
+
+    private static byte[] bytes(int... values)
+    {
+        byte[] bytes = new byte[values.length];
+
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+
+        return bytes;
+    }
+
+    private static byte[] join(int[] start, byte[] rest)
+    {
+        byte[] bytes = Arrays.copyOf(bytes(start), start.length + rest.length);
+        System.arraycopy(rest, 0, bytes, start.length, rest.length);
+        return bytes;
+    }
+}
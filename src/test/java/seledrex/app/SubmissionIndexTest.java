@@ -0,0 +1,208 @@
+package seledrex.app;
+
+//======================================================================================================================
+// Imports
+//======================================================================================================================
+
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.List;
+
+//======================================================================================================================
+// Submission Index Test
+//======================================================================================================================
+
+/**
+ * Tests for {@link SubmissionIndex}, built from a small stash made for
+ * each test.
+ *
+ * @author Eric Auster
+ */
+public class SubmissionIndexTest extends TestCase
+{
+    //==================================================================================================================
+    // Properties
+    //==================================================================================================================
+
+    private File stash; // Temporary stash folder
+
+    //==================================================================================================================
+    // Setup
+    //==================================================================================================================
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        stash = Files.createTempDirectory("stash").toFile();
+
+        // Sizes are the last digit of the number, plus ten for the second artist
+        write("alice", "1000000001.alice_one.png", 1);
+        write("alice", "1000000005.alice_five.png", 5);
+        write("alice", "1000000009.alice_nine.png", 9);
+        write("bob", "1000000003.bob_three.jpg", 13);
+        write("bob", "1000000005.bob_five.jpg", 15);
+
+        // Neither downloads in progress nor loose files are artwork
+        write("download", "1000000007.carol_seven.png", 7);
+        write("", "1000000008.dave_eight.png", 8);
+        write("alice", "notes.txt", 3);
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        FileUtils.deleteDirectory(stash);
+    }
+
+    //==================================================================================================================
+    // Tests
+    //==================================================================================================================
+
+    public void testGet() throws Exception
+    {
+        SubmissionIndex index = build(null);
+
+        assertEquals(5, index.size());
+        assertEquals("bob", index.get(1000000003L).artist);
+        assertEquals(13, index.get(1000000003L).size);
+        assertEquals(1000000009L, index.get(1000000009L).id);
+
+        // Before the first, between two and after the last record
+        assertNull(index.get(1000000000L));
+        assertNull(index.get(1000000004L));
+        assertNull(index.get(1000000010L));
+
+        // Skipped folders are not in the index
+        assertNull(index.get(1000000007L));
+        assertNull(index.get(1000000008L));
+    }
+
+    public void testRange() throws Exception
+    {
+        SubmissionIndex index = build(null);
+        List<SubmissionIndex.Entry> entries = index.range(1000000002L, 1000000005L);
+
+        // Oldest first, both files of the shared number included
+        assertEquals(3, entries.size());
+        assertEquals(1000000003L, entries.get(0).id);
+        assertEquals(1000000005L, entries.get(1).id);
+        assertEquals(1000000005L, entries.get(2).id);
+
+        assertEquals(5, index.range(0, Long.MAX_VALUE - 1).size());
+        assertTrue(index.range(1000000010L, 1000000020L).isEmpty());
+    }
+
+    public void testCount() throws Exception
+    {
+        SubmissionIndex index = build(null);
+
+        assertEquals(3, index.count(1000000002L, 1000000005L));
+        assertEquals(1, index.count(1000000009L, 1000000009L));
+        assertEquals(0, index.count(1000000006L, 1000000008L));
+        assertEquals(0, index.count(1000000005L, 1000000001L));
+        assertEquals(5, index.count(0, 2000000000L));
+    }
+
+    public void testArtists() throws Exception
+    {
+        SubmissionIndex index = build(null);
+
+        assertEquals(1000000009L, index.newest("alice"));
+        assertEquals(1000000005L, index.newest("bob"));
+        assertEquals(-1L, index.newest("carol"));
+        assertEquals(3, index.countOf("alice"));
+        assertEquals(0, index.countOf("carol"));
+        assertEquals(2, index.newestPerArtist().size());
+    }
+
+    public void testSizeOf() throws Exception
+    {
+        SubmissionIndex index = build(null);
+
+        assertEquals(5, index.sizeOf(1000000005L, "alice"));
+        assertEquals(15, index.sizeOf(1000000005L, "bob"));
+        assertEquals(-1, index.sizeOf(1000000005L, "carol"));
+        assertEquals(-1, index.sizeOf(1000000004L, "alice"));
+    }
+
+    public void testKnownSizesKept() throws Exception
+    {
+        SubmissionIndex previous = build(null);
+
+        // Only files that are new to the index are looked at on disk
+        write("alice", "1000000005.alice_five.png", 50);
+        write("alice", "1000000006.alice_six.png", 6);
+        SubmissionIndex index = build(previous);
+
+        assertEquals(5, index.get(1000000005L).size);
+        assertEquals(6, index.get(1000000006L).size);
+    }
+
+    public void testStaleMarker() throws Exception
+    {
+        StashIndex stashIndex = new StashIndex(stash);
+        stashIndex.refresh(1);
+        SubmissionIndex.build(stash, stashIndex, null);
+
+        // A build leaves the marker for the caller to remove
+        assertTrue(new File(stash, SubmissionIndex.staleFilename).exists());
+        SubmissionIndex.markFresh(stash);
+        assertFalse(new File(stash, SubmissionIndex.staleFilename).exists());
+
+        SubmissionIndex.markStale(stash);
+        assertTrue(SubmissionIndex.isStale(stash, stashIndex));
+    }
+
+    public void testIncompleteIndexRefused() throws Exception
+    {
+        build(null);
+        RandomAccessFile file = new RandomAccessFile(new File(stash, SubmissionIndex.filename), "rw");
+
+        try {
+            file.setLength(40);
+        } finally {
+            file.close();
+        }
+
+        try {
+            SubmissionIndex.open(stash);
+            fail("opened a truncated index");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().endsWith("is incomplete"));
+        }
+    }
+
+    public void testNoIndex() throws Exception
+    {
+        assertNull(SubmissionIndex.open(stash));
+    }
+
+    //==================================================================================================================
+    // Helper Methods
+    //==================================================================================================================
+
+    /**
+     * Writes a file of the given size into a directory of the stash.
+     */
+    private void write(String directory, String name, int size) throws IOException
+    {
+        File dir = new File(stash, directory);
+        dir.mkdirs();
+        Files.write(new File(dir, name).toPath(), new byte[size]);
+    }
+
+    /**
+     * Builds the index of the stash and opens it.
+     */
+    private SubmissionIndex build(SubmissionIndex previous) throws IOException
+    {
+        StashIndex index = new StashIndex(stash);
+        index.refresh(1);
+        SubmissionIndex.build(stash, index, previous);
+        return SubmissionIndex.open(stash);
+    }
+}
@@ -0,0 +1,149 @@
+package seledrex.app;
+
+//======================================================================================================================
+// Imports
+//======================================================================================================================
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+//======================================================================================================================
+// Submission Name Benchmark
+//======================================================================================================================
+
+/**
+ * Compares {@link SubmissionName} with the regular expressions it
+ * replaced, on a few million generated names that look like the ones in
+ * a download folder. The bulk sort compiled its pattern once, the single
+ * file sort compiled it for every name. Every benchmark extracts the
+ * artist, as the sorts do. Run with:
+ *
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -cp target/test-classes:target/classes:$(cat target/cp.txt) org.openjdk.jmh.Main SubmissionNameBenchmark
+ *
+ * @author Eric Auster
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SubmissionNameBenchmark
+{
+    //==================================================================================================================
+    // Properties
+    //==================================================================================================================
+
+    private static final int count = 1 << 21; // Names scanned per invocation
+    private static final String[] extensions = {"jpg", "jpeg", "png", "gif", "swf", "mp3", "txt", "docx"};
+    private static final Pattern sortPattern = Pattern.compile("(\\d+.)([^_]*)(_)(.*)");
+
+    private String[] names;
+
+    //==================================================================================================================
+    // Setup
+    //==================================================================================================================
+
+    @Setup
+    public void generate()
+    {
+        Random random = new Random(42);
+        String[] artists = new String[5000];
+
+        // Usernames of varying length, shared by many submissions
+        for (int i = 0; i < artists.length; i++) {
+            artists[i] = word(random, 3 + random.nextInt(14));
+        }
+
+        names = new String[count];
+
+        for (int i = 0; i < count; i++)
+        {
+            StringBuilder name = new StringBuilder(64);
+            name.append(1200000000L + random.nextInt(400000000)).append('.');
+            name.append(artists[random.nextInt(artists.length)]).append('_');
+            name.append(word(random, 4 + random.nextInt(24)));
+
+            // Some original filenames contain underscores and dots of their own
+            if (random.nextInt(4) == 0) {
+                name.append('_').append(word(random, 5));
+            }
+
+            if (random.nextInt(8) == 0) {
+                name.append(".v2");
+            }
+
+            name.append('.').append(extensions[random.nextInt(extensions.length)]);
+            names[i] = name.toString();
+        }
+    }
+
+    //==================================================================================================================
+    // Benchmarks
+    //==================================================================================================================
+
+    /**
+     * The bulk sort before the scanner: one pattern, a matcher per name.
+     */
+    @Benchmark
+    @OperationsPerInvocation(count)
+    public void regexCompiledOnce(Blackhole blackhole)
+    {
+        for (String name : names)
+        {
+            Matcher m = sortPattern.matcher(name);
+            blackhole.consume(m.find() ? m.group(2) : "unsorted");
+        }
+    }
+
+    /**
+     * The single file sort before the scanner: a pattern per name.
+     */
+    @Benchmark
+    @OperationsPerInvocation(count)
+    public void regexCompiledPerName(Blackhole blackhole)
+    {
+        for (String name : names)
+        {
+            Matcher m = Pattern.compile("(\\d{10}.)([^_]*)(_)(.*)").matcher(name);
+            blackhole.consume(m.find() ? m.group(2) : "unsorted");
+        }
+    }
+
+    /**
+     * The scanner both sorts use now.
+     */
+    @Benchmark
+    @OperationsPerInvocation(count)
+    public void scanner(Blackhole blackhole)
+    {
+        SubmissionName parser = SubmissionName.forThread();
+
+        for (String name : names) {
+            blackhole.consume(parser.parse(name) ? parser.getArtist() : "unsorted");
+        }
+    }
+
+    //==================================================================================================================
+    // Helper Methods
+    //==================================================================================================================
+
+    /**
+     * Makes a lower case word with some digits in it.
+     */
+    private static String word(Random random, int length)
+    {
+        char[] chars = new char[length];
+
+        for (int i = 0; i < length; i++) {
+            chars[i] = random.nextInt(10) == 0 ? (char) ('0' + random.nextInt(10)) : (char) ('a' + random.nextInt(26));
+        }
+
+        return new String(chars);
+    }
+}
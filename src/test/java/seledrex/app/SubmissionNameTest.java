@@ -0,0 +1,98 @@
+package seledrex.app;
+
+//======================================================================================================================
+// Imports
+//======================================================================================================================
+
+import junit.framework.TestCase;
+
+//======================================================================================================================
+// Submission Name Test
+//======================================================================================================================
+
+/**
+ * Tests for {@link SubmissionName}. The scanner replaced two regular
+ * expressions that disagreed on the submission number: the bulk sort took
+ * any number of digits (\d+), the single file sort exactly ten (\d{10}).
+ * These tests pin down which names are accepted now.
+ *
+ * @author Eric Auster
+ */
+public class SubmissionNameTest extends TestCase
+{
+    //==================================================================================================================
+    // Tests
+    //==================================================================================================================
+
+    public void testTenDigitNumber()
+    {
+        SubmissionName parser = new SubmissionName();
+
+        assertTrue(parser.parse("1523456789.someartist_my_picture.png"));
+        assertEquals(1523456789L, parser.getId());
+        assertEquals("someartist", parser.getArtist());
+        assertEquals("my_picture.png", "1523456789.someartist_my_picture.png".substring(parser.getTitleStart()));
+        assertEquals("png", "1523456789.someartist_my_picture.png".substring(parser.getExtensionStart()));
+    }
+
+    public void testShortNumberFollowsBulkSort()
+    {
+        // \d+ accepted this name, \d{10} did not; the scanner sides with \d+
+        SubmissionName parser = new SubmissionName();
+
+        assertTrue(parser.parse("12345.someartist_picture.jpg"));
+        assertEquals(12345L, parser.getId());
+        assertEquals("someartist", parser.getArtist());
+    }
+
+    public void testLongNumber()
+    {
+        SubmissionName parser = new SubmissionName();
+
+        // Eighteen digits always fit in a long, nineteen are refused
+        assertTrue(parser.parse("123456789012345678.someartist_picture.jpg"));
+        assertEquals(123456789012345678L, parser.getId());
+        assertFalse(parser.parse("1234567890123456789.someartist_picture.jpg"));
+    }
+
+    public void testNumberMustStartTheName()
+    {
+        // Neither regular expression was anchored, so both found a match inside the name
+        SubmissionName parser = new SubmissionName();
+
+        assertFalse(parser.parse("copy of 1523456789.someartist_picture.png"));
+        assertFalse(parser.parse(".someartist_picture.png"));
+    }
+
+    public void testNumberNeedsDot()
+    {
+        // The unescaped dot of both regular expressions matched any character
+        SubmissionName parser = new SubmissionName();
+
+        assertFalse(parser.parse("1523456789-someartist_picture.png"));
+        assertFalse(parser.parse("1523456789"));
+    }
+
+    public void testArtistNeedsUnderscore()
+    {
+        SubmissionName parser = new SubmissionName();
+
+        assertFalse(parser.parse("1523456789.someartist.png"));
+        assertFalse(parser.parse("1523456789._picture.png"));
+    }
+
+    public void testNameWithoutExtension()
+    {
+        String name = "1523456789.someartist_picture";
+        SubmissionName parser = new SubmissionName();
+
+        assertTrue(parser.parse(name));
+        assertEquals(name.length(), parser.getExtensionStart());
+    }
+
+    public void testParseId()
+    {
+        assertEquals(1523456789L, SubmissionName.parseId("1523456789.someartist_picture.png"));
+        assertEquals(-1L, SubmissionName.parseId("picture.png"));
+    }
+}
@@ -0,0 +1,161 @@
+package seledrex.app;
+
+//======================================================================================================================
+// Imports
+//======================================================================================================================
+
+import junit.framework.TestCase;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+//======================================================================================================================
+// Submission Set Test
+//======================================================================================================================
+
+/**
+ * Tests for {@link SubmissionSet}. Removing a key shifts the keys after
+ * it back instead of leaving a marker, so the removal tests check that
+ * every other key can still be found afterwards.
+ *
+ * @author Eric Auster
+ */
+public class SubmissionSetTest extends TestCase
+{
+    //==================================================================================================================
+    // Tests
+    //==================================================================================================================
+
+    public void testAddAndContains()
+    {
+        SubmissionSet set = new SubmissionSet();
+
+        assertTrue(set.add("1523456789.someartist_picture.png"));
+        assertFalse(set.add("1523456789.someartist_picture.png"));
+        assertTrue(set.contains("1523456789.someartist_picture.png"));
+        assertFalse(set.contains("1523456790.someartist_picture.png"));
+        assertFalse(set.contains("1523456789.otherartist_picture.png"));
+        assertEquals(1, set.size());
+    }
+
+    public void testSameSubmissionIsSameName()
+    {
+        // Only the number and the artist make up the key
+        SubmissionSet set = new SubmissionSet();
+
+        set.add("1523456789.someartist_picture.png");
+        assertTrue(set.contains("1523456789.someartist_renamed.jpg"));
+    }
+
+    public void testNamesWithoutKey()
+    {
+        SubmissionSet set = new SubmissionSet();
+
+        assertEquals(-1L, SubmissionSet.keyOf("picture.png"));
+        assertEquals(-1L, SubmissionSet.keyOf("123456789012345678.someartist_picture.png"));
+
+        assertTrue(set.add("picture.png"));
+        assertTrue(set.add("123456789012345678.someartist_picture.png"));
+        assertTrue(set.contains("picture.png"));
+        assertEquals(2, set.size());
+
+        assertTrue(set.remove("picture.png"));
+        assertFalse(set.contains("picture.png"));
+        assertEquals(1, set.size());
+    }
+
+    public void testGrows()
+    {
+        SubmissionSet set = new SubmissionSet();
+
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(set.add(name(i)));
+        }
+
+        assertEquals(10000, set.size());
+
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(set.contains(name(i)));
+        }
+
+        assertFalse(set.contains(name(10000)));
+    }
+
+    public void testRemoveKeepsOthersReachable()
+    {
+        SubmissionSet set = new SubmissionSet();
+
+        for (int i = 0; i < 100; i++) {
+            set.add(name(i));
+        }
+
+        // Remove every other key, each removal may shift the keys probed after it
+        for (int i = 0; i < 100; i += 2) {
+            assertTrue(set.remove(name(i)));
+            assertFalse(set.remove(name(i)));
+        }
+
+        assertEquals(50, set.size());
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals(name(i), i % 2 == 1, set.contains(name(i)));
+        }
+    }
+
+    public void testRemoveMatchesHashSet()
+    {
+        // A small table that stays half full has long probe runs that wrap around its end
+        Random random = new Random(7);
+        SubmissionSet set = new SubmissionSet();
+        Set<String> expected = new HashSet<String>();
+        List<String> names = new ArrayList<String>();
+
+        for (int i = 0; i < 127; i++) {
+            names.add(name(random.nextInt(1000000)));
+        }
+
+        for (int round = 0; round < 20000; round++)
+        {
+            String name = names.get(random.nextInt(names.size()));
+
+            if (random.nextBoolean()) {
+                assertEquals(expected.add(name), set.add(name));
+            } else {
+                assertEquals(expected.remove(name), set.remove(name));
+            }
+        }
+
+        assertEquals(expected.size(), set.size());
+
+        for (String name : names) {
+            assertEquals(name, expected.contains(name), set.contains(name));
+        }
+    }
+
+    public void testClear()
+    {
+        SubmissionSet set = new SubmissionSet();
+
+        set.add("1523456789.someartist_picture.png");
+        set.add("picture.png");
+        set.clear();
+
+        assertEquals(0, set.size());
+        assertFalse(set.contains("1523456789.someartist_picture.png"));
+        assertFalse(set.contains("picture.png"));
+    }
+
+    //==================================================================================================================
+    // Helper Methods
+    //==================================================================================================================
+
+    /**
+     * Makes a filename for a submission number, spread over a few artists.
+     */
+    private static String name(int id)
+    {
+        return (1200000000L + id) + ".artist" + (id % 37) + "_picture.png";
+    }
+}